@@ -0,0 +1,119 @@
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Measures the rate of new connections the server takes for each number of acceptors, every request is on a connection of its own
+// The acceptor count is read once as the server starts, so each count runs in a server process of its own started from this JVM's class path
+// Usage: java AcceptRateBenchmark <first port> <clients> <seconds> <resource> <mode> [acceptor counts...]
+public class AcceptRateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 5) {
+            System.err.println("Usage: java AcceptRateBenchmark <first port> <clients> <seconds> <resource> <mode> [acceptor counts...]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        int clients = Integer.parseInt(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        String resource = args[3];
+        String mode = args[4];
+        int[] counts = args.length > 5 ? Arrays.stream(args, 5, args.length).mapToInt(Integer::parseInt).toArray() : new int[] { 1, 2, 4, 8 };
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        System.out.printf("%d cores, %s mode, %d clients%n", Runtime.getRuntime().availableProcessors(), mode, clients);
+
+        for (int acceptors : counts) {
+            int countPort = port++;
+            Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "-Dserver.acceptors=" + acceptors,
+                    "HTTP1Server", countPort + "", mode)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            try {
+                if (!awaitListening(countPort, server)) {
+                    System.out.printf("%-3d acceptors  server did not start%n", acceptors);
+                    continue;
+                }
+                Result result = run(countPort, clients, seconds, resource);
+                System.out.printf("%-3d acceptors  %9.1f conn/s  p50 %7.2f ms  p90 %7.2f ms  p99 %7.2f ms  max %7.2f ms  statuses %s%n",
+                    acceptors, result.completed.get() / (double) seconds, result.percentile(0.50), result.percentile(0.90), result.percentile(0.99),
+                    result.percentile(1.0), result.statuses);
+            } finally {
+                server.destroy();
+                server.waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+
+    }
+
+    // Polls the port until the server accepts a connection, giving up after ten seconds or if it exits
+    private static boolean awaitListening(int port, Process server) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline && server.isAlive()) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                return socket.isConnected();
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        return false;
+    }
+
+    private static class Result {
+        final AtomicLong completed = new AtomicLong();
+        final ConcurrentSkipListMap<String, LongAdder> statuses = new ConcurrentSkipListMap<>();
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+        // Latency in milliseconds below which the given fraction of connections completed
+        double percentile(double fraction) {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (sorted.length == 0) return 0;
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    // Each client opens a connection, sends one HTTP/1.0 GET and reads until the server closes, over and over until the time is up
+    private static Result run(int port, int clients, int seconds, String resource) throws InterruptedException {
+        Result result = new Result();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        String status = request(port, resource);
+                        long elapsed = System.nanoTime() - start;
+                        result.completed.incrementAndGet();
+                        result.latencies.add(elapsed);
+                        result.statuses.computeIfAbsent(status == null ? "error" : status, key -> new LongAdder()).increment();
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    // Sends a single GET and reads the whole response, returning its status code or null on failure
+    private static String request(int port, String resource) {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + resource + " HTTP/1.0\r\n\r\n").getBytes());
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            int readin = in.read(buf);
+            if (readin <= 0) return null;
+            String status = new String(buf, 0, Math.min(readin, 64));
+            while (in.read(buf) != -1);
+            String[] fields = status.split(" ");
+            return fields.length > 1 ? fields[1].trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.*;
+
+// Compares the server execution modes by starting each one in process and hitting it with concurrent GET requests
+// Usage: java ExecutionModeBenchmark <first port> <clients> <seconds> <resource> [modes...]
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 4) {
+            System.err.println("Usage: java ExecutionModeBenchmark <first port> <clients> <seconds> <resource> [modes...]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        int clients = Integer.parseInt(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        String resource = args[3];
+        String[] modes = args.length > 4 ? Arrays.copyOfRange(args, 4, args.length) : new String[] { "blocking", "virtual" };
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));    // the server dumps every request and response to stdout
+
+        for (String mode : modes) {
+            final int modePort = port++;
+            Thread server = new Thread(() -> HTTP1Server.main(new String[] { modePort + "", mode }));
+            server.setDaemon(true);
+            server.start();
+            Thread.sleep(500);
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            Result result = run(modePort, clients, seconds, resource);
+            stdout.printf("%-10s %8.1f req/s  p50 %7.2f ms  p90 %7.2f ms  p99 %7.2f ms  max %7.2f ms  peak platform threads %4d  statuses %s%n",
+                mode, result.completed.get() / (double) seconds, result.percentile(0.50), result.percentile(0.90), result.percentile(0.99),
+                result.percentile(1.0), threads.getPeakThreadCount(), result.statuses);
+            stdout.printf("%-10s file cache hits %d  misses %d  evictions %d  entries %d  bytes %d%n", "",
+                FileCache.getHits(), FileCache.getMisses(), FileCache.getEvictions(), FileCache.getEntryCount(), FileCache.getSize());
+        }
+
+        System.setOut(stdout);
+        System.exit(0);
+    }
+
+    private static class Result {
+        final AtomicLong completed = new AtomicLong();
+        final ConcurrentSkipListMap<String, LongAdder> statuses = new ConcurrentSkipListMap<>();
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+        // Latency in milliseconds below which the given fraction of requests completed
+        double percentile(double fraction) {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (sorted.length == 0) return 0;
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    // Clients run on virtual threads so that the peak platform thread count reflects the server's executor
+    private static Result run(int port, int clients, int seconds, String resource) throws InterruptedException {
+        Result result = new Result();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        String status = request(port, resource);
+                        long elapsed = System.nanoTime() - start;
+                        result.completed.incrementAndGet();
+                        result.latencies.add(elapsed);
+                        result.statuses.computeIfAbsent(status == null ? "error" : status, key -> new LongAdder()).increment();
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    // Sends a single GET and reads the whole response, returning its status line or null on failure
+    private static String request(int port, String resource) {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + resource + " HTTP/1.0\r\n\r\n").getBytes());
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            int readin = in.read(buf);
+            if (readin <= 0) return null;
+            String status = new String(buf, 0, Math.min(readin, 64));
+            while (in.read(buf) != -1);
+            String[] fields = status.split(" ");
+            return fields.length > 1 ? fields[1].trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}
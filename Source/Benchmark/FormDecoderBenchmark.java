@@ -0,0 +1,78 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Compares the time per body of FormDecoder and the original decode() as bodies grow, Test/FormDecoderTest checks what they decode to
+// Usage: java FormDecoderBenchmark [largest body in KiB]
+public class FormDecoderBenchmark {
+
+    private static final String ALPHABET = "ab=&%+!*'();:@$,/?#[] \t\r\n0Fé";
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+        for (int kib = 1; kib <= largest; kib *= 10) {
+            String body = randomBody(new Random(kib), kib * 1024);
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            int legacyRuns = Math.max(1, 20 / kib);
+            int streamRuns = Math.max(10, 200_000 / kib);
+            for (int i = 0; i < 3; i++) sink += FormDecoder.decode(bytes, false).length;     // warm up, the legacy path is too slow to warm at size
+            report("decode()", kib, time(legacyRuns, () -> sink += legacyDecode(body).length()), legacyRuns);
+            report("FormDecoder", kib, time(streamRuns, () -> sink += FormDecoder.decode(bytes, false).length), streamRuns);
+        }
+    }
+
+    private static String randomBody(Random random, int length) {
+        StringBuilder body = new StringBuilder(length);
+        for (int i = 0; i < length; i++) body.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return body.toString();
+    }
+
+    private static long time(int runs, Runnable task) {
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) task.run();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, int kib, long elapsed, int runs) {
+        double micros = elapsed / 1000.0 / runs;
+        System.out.printf("%-12s %4d KiB body %14.1f us/body %10.1f MB/s%n", name, kib, micros, kib * 1024 / micros);
+    }
+
+    // The original HTTP1Server.decode, kept to time the streaming decoder against
+    private static String legacyDecode(String string) {
+
+        ArrayList<Integer> arr = new ArrayList<>();
+        for(int i=0;i<string.length();i++) {
+                if(i<string.length()-1 && Pattern.matches("^[!][!*'();:@$+,/?#\\[\\]\\s\\t]", string.substring(i,i+2))) {
+                    arr.add(i);
+                    i=i+1;
+                }
+        }
+
+        String str3="";
+
+        int val =0;
+        for(int i=0;i<string.length();i++) {
+            for(int j=0;j<arr.size();j++) {
+                if(arr.get(j)==i) {
+                    val=1;
+                }
+            }
+            if(val==1) {
+                val=0;
+                continue;
+            }else {
+
+                str3=str3+string.charAt(i);
+                val=0;
+
+            }
+        }
+
+    	return str3;
+    }
+
+}
@@ -0,0 +1,72 @@
+import java.lang.management.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compares time and heap allocation per parsed request between the original String splitting path and RequestParser
+// Usage: java RequestParserBenchmark [iterations]
+public class RequestParserBenchmark {
+
+    private static final byte[] REQUEST = ("GET /images/logo.png HTTP/1.1\r\n" +
+                                           "Host: localhost:1234\r\n" +
+                                           "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0\r\n" +
+                                           "Accept: image/avif,image/webp,*/*\r\n" +
+                                           "Accept-Language: en-US,en;q=0.5\r\n" +
+                                           "Accept-Encoding: gzip, deflate, br\r\n" +
+                                           "Connection: keep-alive\r\n" +
+                                           "Cookie: lasttime=2021-01-01+01%3A00%3A00\r\n" +
+                                           "If-Modified-Since: Tue, 1 Jan 2021 1:00:00 GMT\r\n" +
+                                           "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GET = "GET".getBytes(StandardCharsets.US_ASCII);
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        // warm up both paths so the measured runs are compiled
+        for (int i = 0; i < 3; i++) {
+            run("split", iterations / 4, RequestParserBenchmark::legacyParse);
+            run("parser", iterations / 4, RequestParserBenchmark::incrementalParse);
+        }
+
+        report("split", run("split", iterations, RequestParserBenchmark::legacyParse), iterations);
+        report("parser", run("parser", iterations, RequestParserBenchmark::incrementalParse), iterations);
+    }
+
+    // The original path, the raw request is turned into a String, split into lines and the request line split again
+    private static long legacyParse() {
+        String[] request = new String(REQUEST).split("\n");
+        String[] fields = request[0].split(" ");
+        long length = 0;
+        for (int i = 0; i < request.length; i++) {
+            if (request[i].contains("Content-Length:")) length = Integer.parseInt(request[i].substring(request[i].indexOf(" ") + 1).strip());
+        }
+        return fields.length + fields[0].length() + length;
+    }
+
+    private static final RequestParser parser = new RequestParser();
+    private static final ByteBuffer view = ByteBuffer.wrap(REQUEST);
+
+    private static long incrementalParse() {
+        parser.reset();
+        parser.parse(view);
+        return parser.getFieldCount() + (parser.methodEquals(GET) ? 3 : 0) + parser.getContentLength() + (parser.nameEquals(0, CONTENT_LENGTH) ? 1 : 0);
+    }
+
+    private static long[] run(String name, int iterations, java.util.function.LongSupplier parse) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink += parse.getAsLong();
+        long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, threads.getThreadAllocatedBytes(thread) - allocatedBefore };
+    }
+
+    private static void report(String name, long[] result, int iterations) {
+        System.out.printf("%-8s %8.1f ns/request  %8.1f bytes allocated/request%n", name, result[0] / (double) iterations, result[1] / (double) iterations);
+    }
+
+}
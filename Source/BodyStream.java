@@ -0,0 +1,164 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A response body sent while its source, a CGI program's output, is still producing it, framed as chunks for HTTP/1.1 or left for the connection closing to end
+// At most a fixed number of fixed size buffers are held whatever the source writes, a source faster than the client simply waits for one to be sent
+// A blocking connection reads the source itself, a non-blocking one can't wait on it so a pump thread fills the buffers and wakes the connection when one is ready
+public class BodyStream {
+
+    private static final byte[] CRLF = HTTP1Server.CRLF.getBytes();
+    private static final byte[] LAST_CHUNK = ("0" + HTTP1Server.CRLF + HTTP1Server.CRLF).getBytes();
+    private static final byte[] END = {};      // queued by the pump once the source is exhausted
+
+    private final InputStream source;
+    private final Process process;      // destroyed if the body is dropped before the program finishes, may be null
+    private final boolean chunked;
+    private byte[] first;               // output read before the head was built, sent ahead of the source
+    private final long started;         // nanoTime the program was handed the request, for its duration once the output ends
+    private long written = 0;           // bytes written since the last takeWritten
+
+    private ByteBuffer[] frame;         // the chunk being written
+    private boolean framePumped;        // whether its buffer was filled by the pump and holds one of its permits
+    private boolean finished = false;   // whether the last chunk has been queued
+
+    private final BlockingQueue<byte[]> filled = new LinkedBlockingQueue<>();
+    private final Semaphore buffers = new Semaphore(ServerConfig.STREAM_BUFFERS);
+    private final AtomicBoolean waiting = new AtomicBoolean();
+    private volatile Runnable onReady;
+    private Thread pump;
+    private volatile boolean closed = false;
+
+    public BodyStream(InputStream source, Process process, byte[] first, boolean chunked, long started) {
+        this.source = source;
+        this.process = process;
+        this.first = first;
+        this.chunked = chunked;
+        this.started = started;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    // Called by a non-blocking connection, from any thread, once data is ready after a write stopped for the lack of it
+    public void onReady(Runnable onReady) {
+        this.onReady = onReady;
+    }
+
+    // Whether the last write stopped because the source had nothing ready rather than because the socket was full
+    public boolean isWaiting() {
+        return waiting.get();
+    }
+
+    // Writes as much as is ready, returning whether the whole body is out
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        while (true) {
+            if (frame != null) {
+                written += channel.write(frame);
+                if (ResponseBatch.hasRemaining(frame)) {
+                    if (!channel.isBlocking()) return false;
+                    continue;
+                }
+                frame = null;
+                if (framePumped) buffers.release();     // the pump may refill it
+            }
+            if (finished) return true;
+
+            byte[] data;
+            framePumped = false;
+            if (first != null) {
+                data = first;
+                first = null;
+            } else if (channel.isBlocking()) {
+                data = read();
+            } else {
+                data = filled.poll();
+                if (data == null) {
+                    startPump();
+                    waiting.set(true);
+                    data = filled.poll();       // the pump may have queued between the poll and raising the flag
+                    if (data == null) return false;
+                    waiting.set(false);
+                }
+                if (data != END && data.length == 0) throw new IOException("failed to read CGI output");
+                framePumped = true;
+            }
+            frame = frame(data);
+        }
+    }
+
+    // Bytes written to the connection since this was last called, framing included
+    long takeWritten() {
+        long count = written;
+        written = 0;
+        return count;
+    }
+
+    private ByteBuffer[] frame(byte[] data) {
+        if (data == END) {
+            finished = true;
+            return new ByteBuffer[] { ByteBuffer.wrap(chunked ? LAST_CHUNK : END) };
+        }
+        if (!chunked) return new ByteBuffer[] { ByteBuffer.wrap(data) };
+        return new ByteBuffer[] { ByteBuffer.wrap((Integer.toHexString(data.length) + HTTP1Server.CRLF).getBytes()), ByteBuffer.wrap(data), ByteBuffer.wrap(CRLF) };
+    }
+
+    // Reads whatever the source has next, waiting for at least one byte, END once it is exhausted
+    private byte[] read() throws IOException {
+        byte[] buffer = new byte[ServerConfig.STREAM_BUFFER_SIZE];
+        int readin = source.read(buffer);
+        if (readin == -1) {
+            Metrics.CGI_DURATION.record(System.nanoTime() - started);
+            return END;
+        }
+        return readin == buffer.length ? buffer : Arrays.copyOf(buffer, readin);
+    }
+
+    private void startPump() {
+        if (pump != null) return;
+        pump = Thread.ofVirtual().name("cgi-output-pump").start(this::pump);
+    }
+
+    // Fills buffers from the source on its own thread, holding back while every buffer is waiting to be sent
+    private void pump() {
+        try {
+            while (!closed) {
+                buffers.acquire();
+                byte[] data = read();
+                filled.add(data);
+                wake();
+                if (data == END) return;
+            }
+        } catch (InterruptedException e) {
+            // the body was dropped
+        } catch (IOException e) {
+            if (closed) return;
+            Log.warn("[Error] failed to read CGI output");
+            filled.add(new byte[0]);       // an empty buffer is never read from a live source, so it marks the failure
+            wake();
+        }
+    }
+
+    private void wake() {
+        Runnable ready = onReady;
+        if (ready != null && waiting.compareAndSet(true, false)) ready.run();
+    }
+
+    // Stops the program if it is still running and releases its output, once the body is sent or the connection is dropped
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (pump != null) pump.interrupt();
+        if (process != null && !finished) process.destroy();
+        try {
+            source.close();
+        } catch (IOException e) {
+            // only read from, there is nothing to lose
+        }
+    }
+
+}
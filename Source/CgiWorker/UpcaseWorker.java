@@ -0,0 +1,94 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// A sample persistent CGI program, it answers every request with its CONTENT_LENGTH and its body in upper case
+// Started by the server's worker pool with CGI_PERSISTENT=1 it speaks the framed protocol described in PROTOCOL.txt and serves requests until its stdin closes
+// Without it, when the server runs it one-shot because no worker is ready, it reads the body from stdin and answers the one request the plain CGI way
+// Usage: list cgi_bin/upcase-worker.cgi in server.persistentCgi, see make cgiworker
+public class UpcaseWorker {
+
+    static final byte READY = 1, BEGIN = 2, STDIN = 3, STDOUT = 4, END = 5, ABORT = 6, PING = 7, PONG = 8;
+    static final int MAX_OUTPUT = 64 * 1024;      // the server refuses frames over 1 MiB
+
+    public static void main(String[] args) throws IOException {
+        if (System.getenv("CGI_PERSISTENT") == null) {
+            System.out.write(answer(System.getenv("CONTENT_LENGTH"), System.in.readAllBytes()));
+            System.out.flush();
+            return;
+        }
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(System.out));
+        send(output, READY, 0, new byte[0]);
+
+        // Requests still receiving their body, frames of several of them may arrive interleaved
+        Map<Integer, Map<String, String>> environments = new HashMap<>();
+        Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+        while (true) {
+            byte type;
+            try {
+                type = input.readByte();
+            } catch (EOFException e) {
+                return;     // the server closed stdin, it wants the worker gone
+            }
+            int id = input.readInt();
+            byte[] payload = new byte[input.readInt()];
+            input.readFully(payload);
+
+            switch (type) {
+                case BEGIN:
+                    environments.put(id, environment(payload));
+                    bodies.put(id, new ByteArrayOutputStream());
+                    break;
+                case STDIN:
+                    ByteArrayOutputStream body = bodies.get(id);
+                    if (body == null) break;        // aborted
+                    if (payload.length > 0) {
+                        body.writeBytes(payload);
+                        break;
+                    }
+                    // An empty STDIN ends the body, the output goes in frames of at most MAX_OUTPUT bytes and then the END
+                    byte[] answer = answer(environments.remove(id).get("CONTENT_LENGTH"), bodies.remove(id).toByteArray());
+                    for (int offset = 0; offset < answer.length; offset += MAX_OUTPUT) {
+                        send(output, STDOUT, id, Arrays.copyOfRange(answer, offset, Math.min(answer.length, offset + MAX_OUTPUT)));
+                    }
+                    send(output, END, id, new byte[0]);
+                    break;
+                case ABORT:
+                    environments.remove(id);
+                    bodies.remove(id);
+                    break;
+                case PING:
+                    send(output, PONG, 0, new byte[0]);
+                    break;
+                default:
+                    System.err.println("unknown frame type " + type);
+                    return;
+            }
+        }
+    }
+
+    private static byte[] answer(String contentLength, byte[] body) {
+        return ("<html><body><p>length " + contentLength + "</p><p>" + new String(body, StandardCharsets.UTF_8).toUpperCase() + "</p></body></html>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // NAME=value pairs each ended by a NUL byte
+    private static Map<String, String> environment(byte[] payload) {
+        Map<String, String> environment = new HashMap<>();
+        for (String variable : new String(payload, StandardCharsets.UTF_8).split("\0")) {
+            int equals = variable.indexOf('=');
+            if (equals > 0) environment.put(variable.substring(0, equals), variable.substring(equals + 1));
+        }
+        return environment;
+    }
+
+    private static void send(DataOutputStream output, byte type, int id, byte[] payload) throws IOException {
+        output.writeByte(type);
+        output.writeInt(id);
+        output.writeInt(payload.length);
+        output.write(payload);
+        output.flush();
+    }
+
+}
@@ -0,0 +1,3 @@
+#!/bin/sh
+# Runs the sample worker from the directory this script was copied to along with UpcaseWorker.class
+exec java -cp "$(dirname "$0")" UpcaseWorker
@@ -0,0 +1,342 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Long lived worker processes for the CGI programs listed in server.persistentCgi, so a POST doesn't pay for starting a process and its interpreter
+// Requests go to the worker with the fewest in flight and several can be in flight on one worker, told apart by an id carried in every frame
+// A worker that exits or stops responding fails the requests it had and is restarted, a program that never completes the handshake is left to the one-shot mode
+//
+// Every frame is a 9 byte header, its type, a request id and the payload length as 4 byte big endian integers, followed by the payload
+// Server to worker: BEGIN carries the CGI environment as NAME=value pairs each ended by a NUL byte, STDIN the body with an empty one ending it,
+// ABORT tells the worker the client has gone and PING asks for a PONG while the worker is idle
+// Worker to server: READY is sent once at start up, STDOUT carries output, END finishes a request and PONG answers a PING
+// A worker should exit once its stdin is closed, and as it can still be run one-shot it answers a single request the plain CGI way when CGI_PERSISTENT isn't set
+// CgiWorker/UpcaseWorker.java is a worker to start from, CgiWorker/PROTOCOL.txt describes the frames in full
+public class CgiWorkerPool {
+
+    static final byte READY = 1, BEGIN = 2, STDIN = 3, STDOUT = 4, END = 5, ABORT = 6, PING = 7, PONG = 8;
+
+    private static final int MAX_FRAME = 1024 * 1024;
+    private static final byte[] FINISHED = {};      // queued once a request's END arrives
+    private static final byte[] FAILED = {};        // queued when its worker dies
+
+    private static final Set<String> persistent = new HashSet<>();
+    private static final ConcurrentHashMap<String, CgiWorkerPool> pools = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService supervisor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "cgi-supervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        for (String program : ServerConfig.PERSISTENT_CGI.split(",")) {
+            if (!program.isBlank()) persistent.add(normalize(program));
+        }
+    }
+
+    private final String program;
+    private final AtomicReferenceArray<Worker> workers;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean supported = true;
+    private volatile boolean everReady = false;
+
+    // Hands a request to a worker, returning its output as a stream, or null when the program is to be run one-shot
+    // That is the case for programs which aren't listed, don't speak the protocol or have no worker ready yet, and the body is left unread for them
+    // Otherwise the pool owns the body and closes it once it is sent
+    public static InputStream submit(String program, Map<String, String> environment, InputStream body) {
+        if (ServerConfig.CGI_WORKERS <= 0 || !persistent.contains(normalize(program))) return null;
+        CgiWorkerPool pool = pools.computeIfAbsent(normalize(program), CgiWorkerPool::new);
+        pool.startWorkers();
+        return pool.supported ? pool.dispatch(environment, body) : null;
+    }
+
+    private static String normalize(String program) {
+        program = program.strip();
+        while (program.startsWith("/")) program = program.substring(1);
+        return program;
+    }
+
+    private CgiWorkerPool(String program) {
+        this.program = program;
+        this.workers = new AtomicReferenceArray<>(ServerConfig.CGI_WORKERS);
+    }
+
+    // The processes are started by the supervisor once the pool is in the map, never inside computeIfAbsent where they would hold up every other program's lookup
+    private void startWorkers() {
+        if (!started.compareAndSet(false, true)) return;
+        supervisor.execute(() -> {
+            for (int i = 0; i < workers.length(); i++) start(i, 100);
+        });
+        supervisor.scheduleWithFixedDelay(this::check, ServerConfig.CGI_HEALTH_INTERVAL, ServerConfig.CGI_HEALTH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void start(int slot, long restartDelay) {
+        if (!supported) return;
+        try {
+            ProcessBuilder builder = new ProcessBuilder("./" + program);
+            builder.environment().put("CGI_PERSISTENT", "1");
+            builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            long started = System.nanoTime();
+            Process process = builder.start();
+            Metrics.cgiSpawned(true, System.nanoTime() - started);
+            workers.set(slot, new Worker(slot, process, restartDelay));
+        } catch (IOException e) {
+            Log.error("[Error] failed to start a worker for " + program, e);
+            restart(slot, restartDelay);
+        }
+    }
+
+    private void restart(int slot, long delay) {
+        supervisor.schedule(() -> start(slot, Math.min(delay * 2, 10_000)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private InputStream dispatch(Map<String, String> environment, InputStream body) {
+        Worker worker = null;
+        for (int i = 0; i < workers.length(); i++) {
+            Worker candidate = workers.get(i);
+            if (candidate == null || !candidate.ready || candidate.dead) continue;
+            if (worker == null || candidate.exchanges.size() < worker.exchanges.size()) worker = candidate;
+        }
+        if (worker == null) return null;
+
+        int id;
+        do id = nextId.incrementAndGet() & Integer.MAX_VALUE; while (id == 0);     // 0 is for frames about the worker itself
+        Exchange exchange = new Exchange(id, worker);
+        worker.exchanges.put(id, exchange);
+        try {
+            worker.begin(id, environment);
+        } catch (IOException e) {
+            worker.exchanges.remove(id);
+            worker.end("failed to receive a request");
+            return null;
+        }
+        Worker target = worker;
+        int request = id;
+        Thread.ofVirtual().name("cgi-stdin").start(() -> target.stream(request, body));
+        return exchange;
+    }
+
+    // Runs every health interval, idle workers are pinged and have until the next run to answer, busy ones just have to keep sending something
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < workers.length(); i++) {
+            Worker worker = workers.get(i);
+            if (worker == null || worker.dead) continue;
+            if (!worker.ready) {
+                if (now - worker.started > ServerConfig.CGI_HEALTH_INTERVAL) worker.end("never sent READY");
+            } else if (!worker.exchanges.isEmpty()) {
+                if (now - worker.lastHeard > ServerConfig.CGI_WORKER_TIMEOUT) worker.end("stopped responding");
+            } else if (worker.pinged) {
+                worker.end("didn't answer a health check");
+            } else {
+                worker.pinged = true;
+                try {
+                    worker.ping();
+                } catch (IOException e) {
+                    worker.end("failed to receive a health check");
+                }
+            }
+        }
+    }
+
+    private final class Worker {
+        final int slot;
+        final Process process;
+        final DataOutputStream input;
+        final long started = System.currentTimeMillis();
+        final long restartDelay;
+        final ConcurrentHashMap<Integer, Exchange> exchanges = new ConcurrentHashMap<>();
+        final AtomicBoolean ended = new AtomicBoolean();
+        volatile boolean ready = false;
+        volatile boolean dead = false;
+        volatile boolean pinged = false;
+        volatile long lastHeard = started;
+
+        Worker(int slot, Process process, long restartDelay) {
+            this.slot = slot;
+            this.process = process;
+            this.restartDelay = restartDelay;
+            this.input = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 64 * 1024));
+            Thread reader = new Thread(this::read, "cgi-worker-" + program + "-" + slot);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void begin(int id, Map<String, String> environment) throws IOException {
+            ByteArrayOutputStream params = new ByteArrayOutputStream();
+            for (Map.Entry<String, String> variable : environment.entrySet()) {
+                params.writeBytes((variable.getKey() + "=" + variable.getValue()).getBytes());
+                params.write(0);
+            }
+            frame(BEGIN, id, params.toByteArray(), 0, params.size());
+        }
+
+        // Sends the body as it is read, frames of different requests may interleave since each one carries its id
+        // A request that was aborted or whose worker died stops being sent
+        void stream(int id, InputStream body) {
+            byte[] chunk = new byte[64 * 1024];
+            try (body) {
+                int readin;
+                while ((readin = body.readNBytes(chunk, 0, chunk.length)) > 0) {
+                    if (!exchanges.containsKey(id)) return;
+                    frame(STDIN, id, chunk, 0, readin);
+                }
+                frame(STDIN, id, chunk, 0, 0);
+            } catch (IOException e) {
+                if (!exchanges.containsKey(id)) return;
+                Exchange exchange = exchanges.remove(id);
+                if (exchange != null) exchange.fail();
+                Log.warn("[Error] failed to send a request body to the CGI worker for " + program);
+            }
+        }
+
+        void abort(int id) {
+            try {
+                frame(ABORT, id, FINISHED, 0, 0);
+            } catch (IOException e) {
+                // a dead worker has nothing left to abort
+            }
+        }
+
+        void ping() throws IOException {
+            frame(PING, 0, FINISHED, 0, 0);
+        }
+
+        // Each frame is written and flushed whole, so frames sent from different threads never interleave
+        private synchronized void frame(byte type, int id, byte[] payload, int offset, int length) throws IOException {
+            input.writeByte(type);
+            input.writeInt(id);
+            input.writeInt(length);
+            input.write(payload, offset, length);
+            input.flush();
+        }
+
+        // Hands each frame of output to the request it belongs to, output for a request that was aborted is dropped
+        private void read() {
+            try (DataInputStream output = new DataInputStream(new BufferedInputStream(process.getInputStream(), 64 * 1024))) {
+                while (true) {
+                    byte type = output.readByte();
+                    int id = output.readInt();
+                    int length = output.readInt();
+                    if (length < 0 || length > MAX_FRAME) throw new IOException("frame of " + length + " bytes");
+                    byte[] payload = new byte[length];
+                    output.readFully(payload);
+                    lastHeard = System.currentTimeMillis();
+                    if (!ready && type != READY) throw new IOException("frame " + type + " before READY");
+
+                    if (type == READY) {
+                        ready = true;
+                        everReady = true;
+                    } else if (type == STDOUT) {
+                        Exchange exchange = exchanges.get(id);
+                        if (exchange != null && length > 0) exchange.deliver(payload);
+                    } else if (type == END) {
+                        Exchange exchange = exchanges.remove(id);
+                        if (exchange != null) exchange.deliver(FINISHED);
+                    } else if (type == PONG) {
+                        pinged = false;
+                    } else {
+                        throw new IOException("unknown frame type " + type);
+                    }
+                }
+            } catch (IOException e) {
+                end(e instanceof EOFException ? "exited" : "broke the protocol, " + e.getMessage());
+            }
+        }
+
+        // Fails the requests in flight and starts a replacement, after a pause that grows while workers keep dying young
+        // Killing the process ends the reader too, whichever of them comes second finds the worker already ended
+        void end(String reason) {
+            if (!ended.compareAndSet(false, true)) return;
+            dead = true;
+            process.destroyForcibly();
+            for (Exchange exchange : exchanges.values()) exchange.fail();
+            exchanges.clear();
+            if (!everReady) {
+                if (!supported) return;
+                supported = false;
+                Log.warn("[Warning] " + program + " doesn't speak the CGI worker protocol (" + reason + "), it will be run once per request");
+                for (int i = 0; i < workers.length(); i++) {
+                    Worker worker = workers.get(i);
+                    if (worker != null && worker != this) worker.end(reason);
+                }
+                return;
+            }
+            Log.warn("[Warning] CGI worker for " + program + " " + reason + ", restarting it");
+            restart(slot, System.currentTimeMillis() - started > 10_000 ? 100 : restartDelay);
+        }
+    }
+
+    // A request's output as it arrives from its worker, held until its client takes it so a slow client never holds up the worker's other requests
+    // A request whose client falls server.cgiWorkerBuffer bytes behind is aborted instead of letting its output grow without bound
+    private final class Exchange extends InputStream {
+        private final int id;
+        private final Worker worker;
+        private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        private final AtomicLong buffered = new AtomicLong();      // bytes delivered that the client hasn't taken yet
+        private byte[] current;
+        private int offset;
+        private volatile boolean closed = false;
+
+        Exchange(int id, Worker worker) {
+            this.id = id;
+            this.worker = worker;
+        }
+
+        // Called on the worker's reader thread, so it never waits, the ABORT is written on a thread of its own since the worker may be blocked writing output
+        void deliver(byte[] frame) {
+            if (closed) return;
+            if (buffered.addAndGet(frame.length) > ServerConfig.CGI_WORKER_BUFFER) {
+                Log.warn("[Warning] a client of " + program + " fell too far behind its output, aborting the request");
+                if (worker.exchanges.remove(id) != null) Thread.ofVirtual().name("cgi-abort").start(() -> worker.abort(id));
+                fail();
+                return;
+            }
+            frames.add(frame);
+        }
+
+        void fail() {
+            frames.clear();
+            frames.offer(FAILED);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (current == null || offset == current.length) {
+                if (current == FINISHED) return -1;
+                try {
+                    current = frames.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                offset = 0;
+                buffered.addAndGet(-current.length);
+                if (current == FINISHED) return -1;
+                if (current == FAILED) throw new IOException("CGI worker for " + program + " failed");
+            }
+            int count = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, buffer, off, count);
+            offset += count;
+            return count;
+        }
+
+        // Tells the worker to stop if the request is still running, once the body is sent or the client is gone
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            frames.clear();
+            if (worker.exchanges.remove(id) != null) worker.abort(id);
+        }
+    }
+
+}
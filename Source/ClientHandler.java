@@ -1,105 +1,324 @@
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 
 public class ClientHandler implements Runnable {
 
+    private static final byte[] CONTENT_LENGTH = "\ncontent-length:".getBytes();
+    private static final byte[] TRANSFER_ENCODING = "\ntransfer-encoding:".getBytes();     // only ever sent as chunked
+
     private Socket clientSocket;
-    private HashMap<String, HTTP1Server.RequestHandler> handlerMap;
-    private int active_count;
+    private HandlerTable handlers;
+    private final long accepted;       // nanoTime the acceptor took the connection at
+    private final long id = HTTP1Server.nextConnectionId();
+    private final ServerEvents.Accept accepting = ServerEvents.accept();
 
-    public ClientHandler(Socket clientSocket, HashMap<String, HTTP1Server.RequestHandler> handlerMap, int active_count) {
+    // The connection's place in the active count is reserved by the acceptor, run releases it exactly once however it ends
+    public ClientHandler(Socket clientSocket, HandlerTable handlers, long accepted) {
         this.clientSocket = clientSocket;
-        this.handlerMap = handlerMap;
-        this.active_count = active_count;
+        this.handlers = handlers;
+        this.accepted = accepted;
     }
 
     @Override
     public void run() {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                DataOutputStream output = new DataOutputStream(clientSocket.getOutputStream());) {
+        Metrics.ACCEPT.record(System.nanoTime() - accepted);
+        Metrics.connectionAccepted();
+        ServerEvents.commit(accepting, id, null, 0, 0);
+        ResponseBatch responses = new ResponseBatch();     // holds open files until they are sent, so it is closed however the connection ends
+        // The input stream is not auto closed since closing it would close the socket before the graceful close can drain it
+        try {
+            InputStream input = clientSocket.getInputStream();
+            SocketChannel channel = clientSocket.getChannel();
 
-            byte[] response = {};
-            
-            if(active_count > HTTP1Server.MAXIMUM_THREAD_COUNT) {        // If maximum thread count was reached, deny service to client
-                System.out.println("Connection from " + clientSocket.getInetAddress() + " denied: Maximum connected clients reached");
-                response = (HTTP1Server.SUPPORTED_VERSION + " " + StatusCode._503.toString()).getBytes();     
-                sendResponseAndClose(output, response);
-                reader.close();
-                return;
-            }
+            // Requests are read until the headers have arrived, each read blocks with a socket timeout set to the current deadline
+            // Every complete request already buffered is answered before anything is written, so the responses to pipelined requests go out in one write
+            int offset = 0;
+            byte[] buf = new byte[1024];
+            ByteBuffer view = ByteBuffer.wrap(buf);
+            RequestParser parser = new RequestParser();
+            int handled = 0;
+            boolean keepAlive = true;
+            ServerEvents.Read reading = null;      // the request being read, begun with its first byte
+            long deadline = System.currentTimeMillis() + ServerConfig.IDLE_TIMEOUT;
+            while (keepAlive) {
+                RequestParser.Result result = parser.parse(view.limit(offset));
+                if (result == RequestParser.Result.TOO_LARGE) {
+                    responses.add(Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._431), false)));
+                    break;
+                }
+                if (result == RequestParser.Result.MALFORMED) {
+                    responses.add(Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._400), false)));
+                    break;
+                }
+                if (result == RequestParser.Result.ENCODED) {
+                    responses.add(Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._501), false)));
+                    break;
+                }
+                if (parser.getHeaderEnd() != -1) {
+                    // The body doesn't go through buf, whatever of it was read with the headers is moved to its own buffer or spool file and the rest read straight into it
+                    int headerEnd = parser.getHeaderEnd();
+                    long length = parser.getContentLength();
+                    if (length > ServerConfig.MAX_BODY_SIZE) {
+                        responses.add(Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._413), false)));
+                        break;
+                    }
+                    IncomingRequest request = new IncomingRequest(id, new String(buf, 0, headerEnd), handlers.find(parser), parser.hasContentLength() ? length : -1, length > 0 ? new RequestBody(length) : null);
+                    try {
+                        int taken = request.body == null ? 0 : request.body.append(buf, headerEnd, offset - headerEnd);
+                        offset -= headerEnd + taken;
+                        System.arraycopy(buf, headerEnd + taken, buf, 0, offset);
+                        parser.reset();
+                        if (request.body != null && !request.body.isComplete()) {
+                            flush(channel, responses);      // earlier pipelined requests are answered before waiting on this body
+                            Response failure = readBody(input, request.body);
+                            if (failure != null) {
+                                request.close();
+                                sendResponseAndClose(channel, new ResponseBatch(failure));
+                                return;
+                            }
+                        }
+                        request.arrived(reading);
+                    } catch (IOException e) {
+                        request.close();
+                        throw e;
+                    }
+                    if (offset > 0) reading = ServerEvents.read();     // the next pipelined request has already begun to arrive
+                    // The handler runs on this thread within its method's stage's limits, a full stage answers with a 503 and the connection is closed
+                    boolean mayKeepAlive = ++handled < ServerConfig.MAX_KEEP_ALIVE_REQUESTS;
+                    boolean[] persists = new boolean[1];
+                    if (!handlers.stageOf(request.handler).runOnCaller(() -> persists[0] = processRequest(request, clientSocket.getInetAddress(), mayKeepAlive, responses))) {
+                        request.close();
+                        responses.add(Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._503), false)));
+                        break;
+                    }
+                    keepAlive = persists[0];
+                    deadline = System.currentTimeMillis() + (offset == 0 ? ServerConfig.KEEP_ALIVE_TIMEOUT : ServerConfig.HEADER_TIMEOUT);
+                    continue;
+                }
+
+                flush(channel, responses);
 
-            long connectedTime = System.currentTimeMillis();
-            while (!reader.ready()) {
-                if (System.currentTimeMillis() - connectedTime > 5000) {        // Check if elapsed time since connection is over 5 seconds
+                int readin;
+                try {
+                    clientSocket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                    readin = input.read(buf, offset, buf.length - offset);
+                    Metrics.bytesIn(readin);
+                } catch (SocketTimeoutException e) {
+                    if (handled > 0 && offset == 0) break;      // an idle persistent connection is closed without a response
                     // Client has timed out
-                    System.out.println("Connection from " + clientSocket.getInetAddress() + " denied: Client timed out");
-                    response = (HTTP1Server.SUPPORTED_VERSION + " " + StatusCode._408.toString()).getBytes();       
-                    sendResponseAndClose(output, response);
-                    reader.close();
-		            return;
+                    Log.info("Connection from " + clientSocket.getInetAddress() + " denied: Client timed out");
+                    sendResponseAndClose(channel, new ResponseBatch(Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._408), false))));
+                    return;
+                }
+                if (readin == -1) {
+                    // client finished sending, validate whatever did arrive of a last request, the parser has already seen all of it so its method picks the handler
+                    if (offset > 0) processRequest(new IncomingRequest(id, new String(buf, 0, offset), handlers.find(parser), -1, null), clientSocket.getInetAddress(), false, responses);
+                    break;
                 }
-            }
 
-            // Read in all lines from client into a buffer
-            int offset = 0;
-            char[] cbuf = new char[1024];
-            int readin;
-            while (reader.ready() && (readin = reader.read(cbuf, offset, cbuf.length - offset)) != -1) {
+                if (offset == 0) {
+                    deadline = System.currentTimeMillis() + ServerConfig.HEADER_TIMEOUT;
+                    reading = ServerEvents.read();
+                }
                 offset += readin;
-                if (cbuf.length == offset) cbuf = Arrays.copyOf(cbuf, cbuf.length * 2);
+                if (buf.length == offset) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    view = ByteBuffer.wrap(buf);
+                }
             }
+
+            if (handled == 0 && responses.isEmpty()) {      // connection closed without a request, there is nobody to answer
+                clientSocket.close();
+                return;
+            }
+
+            sendResponseAndClose(channel, responses);
             
-            System.out.println("====================================================\nRecieved request from: " + clientSocket.getInetAddress() + "\n********************************************\n" + String.valueOf(cbuf) + "====================================================");
-        
-            String[] request = String.valueOf(cbuf).split("\n"); 
-            String[] fields = request[0].split(" ");	// split the first line into fields to validate request
-
-            // Check that request is valid
-
-	    int usedIndicies = fields.length;
-            if (fields.length != 3) {
-	        usedIndicies = 0;
-		for (int i = 0; i < fields.length; i++) {
-		    if (!fields[i].isBlank()) ++usedIndicies;
-		}
-	    }
-	    
-            if (/*request.length == 1 && */ cbuf[offset - 1] != '\n') response = (HTTP1Server.SUPPORTED_VERSION + " " + StatusCode._400.toString()).getBytes();    // should check if there are no headers, then only one newline, if there are headers then only 2 new lines
-	    else if (usedIndicies != 3)	response = (HTTP1Server.SUPPORTED_VERSION + " " + StatusCode._400.toString()).getBytes();     // check that the request line contains only 3 fields
-            else if (!isValidVersion(fields[2])) response = (HTTP1Server.SUPPORTED_VERSION + " " + StatusCode._505.toString()).getBytes();   // check the client http version
-            else if (!handlerMap.containsKey(fields[0])) response = (HTTP1Server.SUPPORTED_VERSION + " " + StatusCode._400.toString()).getBytes();    // check that the request is valid method
-            else response = handlerMap.get(fields[0]).handler(request);    // Generate response 
-
-            sendResponseAndClose(output, response);
-            reader.close();
-            
-        } catch(IOException e) {
-            System.err.println("[Error] failed to communicate with client");
-            HTTP1Server.decrimentActiveCount();
+        } catch(IOException | RuntimeException e) {
+            responses.close();
+            if (e instanceof RuntimeException) Log.error("[Error] failed to handle client request", e);
+            else Log.warn("[Error] failed to communicate with client");
+            try {
+                clientSocket.close();
+            } catch (IOException closeException) {
+                // the socket is already unusable
+            }
+        } finally {
+            HTTP1Server.releaseConnection();
+        }
+    }
+
+    // Writes the responses gathered so far before the connection blocks on reading
+    private void flush(SocketChannel channel, ResponseBatch responses) throws IOException {
+        if (responses.isEmpty()) return;
+        responses.log(clientSocket.getInetAddress());
+        try {
+            responses.writeTo(channel, id);
+        } finally {
+            responses.reset();
+        }
+    }
+
+    // Reads the rest of a body straight from the socket, never past its end so a pipelined request after it stays unread
+    // The body timeout runs from the last bytes received, so a large upload only has to keep moving, returns the response to close with if the body doesn't arrive
+    private Response readBody(InputStream input, RequestBody body) throws IOException {
+        byte[] buf = new byte[(int) Math.min(64 * 1024, body.remaining())];
+        while (!body.isComplete()) {
+            int readin;
+            try {
+                clientSocket.setSoTimeout(ServerConfig.BODY_TIMEOUT);
+                readin = input.read(buf, 0, (int) Math.min(buf.length, body.remaining()));
+            } catch (SocketTimeoutException e) {
+                Log.info("Connection from " + clientSocket.getInetAddress() + " denied: Client timed out");
+                return Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._408), false));
+            }
+            if (readin == -1) return Response.of(withConnectionHeader(HTTP1Server.statusResponse(StatusCode._400), false));     // the client stopped partway through
+            Metrics.bytesIn(readin);
+            body.append(buf, 0, readin);
         }
+        return null;
+    }
+
+    // Answers one request of a possibly persistent connection, adding the response to the given batch and releasing the request's body
+    // Returns whether the connection can carry another request, which needs the client to want it, the response to be self delimiting and mayKeepAlive to allow it
+    static boolean processRequest(IncomingRequest request, InetAddress address, boolean mayKeepAlive, ResponseBatch responses) {
+        Response response = null;
+        long start = System.nanoTime();
+        Metrics.QUEUE_WAIT.record(start - request.ready);
+        ServerEvents.commit(request.queued, request.connection, request.head, 0, 0);
+        ServerEvents.Handle handling = ServerEvents.handle();
+        try {
+            response = processRequest(request.head, request.handler, request.length, request.body, address, request.connection);
+        } finally {
+            request.close();
+            Metrics.HANDLER.record(System.nanoTime() - start);
+            ServerEvents.commit(handling, request.connection, request.head, response != null ? response.getStatus() : 500, response != null ? response.getBodyLength() : 0);
+        }
+        boolean keepAlive = mayKeepAlive && wantsKeepAlive(request.head) && isDelimited(response.getHead(), request.head.startsWith("HEAD ")) && !isFramingError(response.getStatus());
+        responses.add(response.withConnection(keepAlive));
+        return keepAlive;
+    }
+
+    // After these the request may not have ended where the server thinks it did, so what follows on the connection can't be trusted to be the next request
+    private static boolean isFramingError(int status) {
+        return status == 400 || status == 411 || status == 413;
+    }
+
+    // HTTP/1.1 connections persist unless the client asks to close them, HTTP/1.0 ones only when the client asks to keep them alive
+    private static boolean wantsKeepAlive(String rawRequest) {
+        String[] lines = rawRequest.split("\n");
+        boolean keepAlive = lines[0].strip().endsWith("HTTP/1.1");
+        for (int i = 1; i < lines.length && !lines[i].isBlank(); i++) {
+            if (!lines[i].regionMatches(true, 0, "Connection:", 0, 11)) continue;
+            for (String token : lines[i].substring(11).split(",")) {
+                if (token.strip().equalsIgnoreCase("close")) return false;
+                if (token.strip().equalsIgnoreCase("keep-alive")) keepAlive = true;
+            }
+        }
+        return keepAlive;
+    }
+
+    // A response can be followed by another on the same connection only if the client can tell where its body ends without the connection closing
+    // Scans the bytes in place since it runs for every response
+    private static boolean isDelimited(byte[] head, boolean isHead) {
+        int headerEnd = -1;
+        for (int i = 0; i + 3 < head.length; i++) {
+            if (head[i] == '\r' && head[i + 1] == '\n' && head[i + 2] == '\r' && head[i + 3] == '\n') {
+                headerEnd = i;
+                break;
+            }
+        }
+        if (headerEnd == -1) return false;
+        if (isHead || hasStatus(head, "204") || hasStatus(head, "304")) return true;
+        return hasHeader(head, headerEnd, CONTENT_LENGTH) || hasHeader(head, headerEnd, TRANSFER_ENCODING);
+    }
+
+    // name is lower case and starts with the newline ending the previous line
+    private static boolean hasHeader(byte[] head, int headerEnd, byte[] name) {
+        for (int i = 0; i + name.length <= headerEnd; i++) {
+            int j = 0;
+            while (j < name.length && Character.toLowerCase(head[i + j]) == name[j]) j++;
+            if (j == name.length) return true;
+        }
+        return false;
+    }
+
+    private static boolean hasStatus(byte[] head, String code) {
+        return head.length > 12 && head[8] == ' ' && head[9] == code.charAt(0) && head[10] == code.charAt(1) && head[11] == code.charAt(2) && head[12] == ' ';
+    }
+
+    // Adds a Connection header straight after the status line telling the client whether the connection stays open
+    static byte[] withConnectionHeader(byte[] response, boolean keepAlive) {
+        int statusEnd = 0;
+        while (statusEnd < response.length - 1 && !(response[statusEnd] == '\r' && response[statusEnd + 1] == '\n')) statusEnd++;
+        if (statusEnd >= response.length - 1) return response;     // a bare status line is already closed by the connection closing
+        byte[] header = ("Connection: " + (keepAlive ? "keep-alive" : "close") + HTTP1Server.CRLF).getBytes();
+        byte[] framed = new byte[response.length + header.length];
+        System.arraycopy(response, 0, framed, 0, statusEnd + 2);
+        System.arraycopy(header, 0, framed, statusEnd + 2, header.length);
+        System.arraycopy(response, statusEnd + 2, framed, statusEnd + 2 + header.length, response.length - statusEnd - 2);
+        return framed;
+    }
+
+    // Validates a raw request and generates its response through the handler picked for its method, shared by the blocking and non-blocking server modes
+    // length is the Content-Length the request was framed by, -1 when it had none
+    static Response processRequest(String rawRequest, HttpHandler handler, long length, RequestBody body, InetAddress address, long connection) {
+
+        if (Log.isEnabled(Log.Level.DEBUG)) Log.debug("====================================================\nRecieved request from: " + address + "\n********************************************\n" + rawRequest + "====================================================");
+
+        String[] request = rawRequest.split("\n"); 
+        String[] fields = request[0].strip().split(" +");	// split the first line into fields to validate request
+        Metrics.countMethod(fields[0]);
+
+        // Check that request is valid
+
+        if (!rawRequest.endsWith("\n") && !rawRequest.contains("\n\n") && !rawRequest.contains("\n\r\n")) return Response.of(HTTP1Server.statusResponse(StatusCode._400));    // the request line and headers have to be terminated, a body after them doesn't
+        else if (fields.length != 3) return Response.of(HTTP1Server.statusResponse(StatusCode._400));     // check that the request line contains only 3 fields
+        else if (!isValidVersion(fields[2])) return Response.of(HTTP1Server.statusResponse(StatusCode._505));   // check the client http version
+        else if (handler == null) return Response.of(HTTP1Server.statusResponse(StatusCode._400));    // check that the request is valid method
+
+        // Generate response
+        ResponseSink response = new ResponseSink();
+        try {
+            handler.handle(new HttpRequest(request, fields[0], fields[1], fields[2], length, body, address, connection), response);
+        } catch (RuntimeException e) {
+            response.discard();
+            throw e;
+        }
+        return response.finish();
+
+    }
+
+    // Logs the response being sent to a client at debug level, only the status line and headers are decoded and the body is summarised by its size
+    static void logResponse(InetAddress address, Response response) {
+        if (!Log.isEnabled(Log.Level.DEBUG)) return;
+        byte[] bytes = response.renderHead();
+        String head = new String(bytes, 0, Math.min(bytes.length, 8192), StandardCharsets.ISO_8859_1);
+        int headerEnd = head.indexOf(HTTP1Server.CRLF + HTTP1Server.CRLF);
+        if (headerEnd != -1 && response.getStream() != null) head = head.substring(0, headerEnd) + "\n[streamed body]";
+        else if (headerEnd != -1) head = head.substring(0, headerEnd) + "\n[" + (bytes.length - headerEnd - 4 + response.getBodyLength()) + " byte body]";
+        Log.debug("====================================================\nSending response to: " + address + "\n********************************************\n" + head + "\n====================================================");
     }
 
-    private boolean isValidVersion(String version) {
+    private static boolean isValidVersion(String version) {
         try {
-            return Double.parseDouble(version.trim().split("/")[1]) <= 1.0;
+            return version.trim().startsWith("HTTP/") && Double.parseDouble(version.trim().split("/")[1]) <= 1.1;
         } catch (Exception e) {
             return false;
         }
     }
 
-    private void sendResponseAndClose(DataOutputStream output, byte[] response) throws IOException {
-        System.out.println("====================================================\nSending response to: " + clientSocket.getInetAddress() + "\n********************************************\n" + new String(response, StandardCharsets.UTF_8) + "\n====================================================");
-        output.write(response);	// Send response back to client
-        output.flush();
+    private void sendResponseAndClose(SocketChannel channel, ResponseBatch responses) throws IOException {
+        responses.log(clientSocket.getInetAddress());
         try {
-            Thread.sleep(250);	// Wait 1/4 second
-        } catch(InterruptedException e) {
-            System.err.println("[Error] error occured while sending message to client");
+            responses.writeTo(channel, id);	// Send response back to client
+        } finally {
+            responses.close();
         }
-        output.close();
-        clientSocket.close();
-        HTTP1Server.decrimentActiveCount();
+        GracefulCloser.close(channel);
     }
 }
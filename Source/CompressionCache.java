@@ -0,0 +1,142 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.*;
+
+// Keeps gzip and deflate variants of compressible files so each one is only compressed once, bounded by total bytes with the least recently used going first
+// Keys carry the file's modification time, so an edited file simply misses and the variants of its old content age out
+public class CompressionCache {
+
+    // bytes is null when compressing didn't make the file any smaller, so the identity body is sent without trying again
+    public static final class Variant {
+        final byte[] bytes;
+
+        Variant(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long size() {
+            return bytes == null ? 64 : bytes.length;     // a marker still takes some room, so the cache can't fill with them unbounded
+        }
+    }
+
+    private static final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static long size = 0;       // guarded by lock
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    // Picks the encoding to send from an Accept-Encoding header, gzip before deflate, null when the client takes neither
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzip = -1;
+        double deflate = -1;
+        double wildcard = 0;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].strip().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].strip();
+                if (!parameter.startsWith("q=")) continue;
+                try {
+                    quality = Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    quality = 0;
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) gzip = quality;
+            else if (coding.equals("deflate")) deflate = quality;
+            else if (coding.equals("*")) wildcard = quality;
+        }
+        if (gzip < 0) gzip = wildcard;        // codings the client didn't name take the quality of *, if it sent one
+        if (deflate < 0) deflate = wildcard;
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        if (deflate > 0) return "deflate";
+        return null;
+    }
+
+    // Text compresses well, the image and archive formats getMimeType knows are compressed already
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) return false;
+        return mimeType.startsWith("text/") || mimeType.equals("application/javascript") || mimeType.equals("application/json")
+            || mimeType.equals("application/xml") || mimeType.equals("image/svg+xml");
+    }
+
+    public static Variant get(String path, long lastModified, String encoding) {
+        if (ServerConfig.COMPRESSION_CACHE_SIZE <= 0) return null;
+        Variant variant;
+        lock.lock();
+        try {
+            variant = variants.get(key(path, lastModified, encoding));     // a lookup moves the entry to the recent end, so it needs the lock too
+        } finally {
+            lock.unlock();
+        }
+        if (variant == null) misses.increment();
+        else hits.increment();
+        return variant;
+    }
+
+    // Compresses the identity body and keeps the result, returns a variant without bytes if compressing didn't help
+    public static Variant compress(String path, long lastModified, String encoding, byte[] identity) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(identity.length / 4 + 64);
+        if (encoding.equals("gzip")) {
+            try (GZIPOutputStream output = new BestGZIPOutputStream(compressed)) {
+                output.write(identity);
+            }
+        } else {
+            // A stream only ends a Deflater it made itself, this one's native memory is freed here rather than whenever the GC gets to it
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (DeflaterOutputStream output = new DeflaterOutputStream(compressed, deflater)) {
+                output.write(identity);
+            } finally {
+                deflater.end();
+            }
+        }
+        Variant variant = new Variant(compressed.size() < identity.length ? compressed.toByteArray() : null);
+        put(key(path, lastModified, encoding), variant);
+        return variant;
+    }
+
+    private static void put(String key, Variant variant) {
+        if (variant.size() > ServerConfig.COMPRESSION_CACHE_SIZE) return;
+        lock.lock();
+        try {
+            Variant previous = variants.put(key, variant);
+            if (previous != null) size -= previous.size();
+            size += variant.size();
+            Iterator<Variant> eldest = variants.values().iterator();
+            while (size > ServerConfig.COMPRESSION_CACHE_SIZE) {
+                size -= eldest.next().size();
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(String path, long lastModified, String encoding) {
+        return path + '\n' + lastModified + '\n' + encoding;
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    // Variants are compressed once and sent many times, so they are worth the slowest level, the stream ends its own Deflater when closed
+    private static final class BestGZIPOutputStream extends GZIPOutputStream {
+        BestGZIPOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+
+    private CompressionCache() {}
+
+}
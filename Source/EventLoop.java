@@ -0,0 +1,135 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+// A single selector thread which reads requests from, and writes responses to, every connection registered with it
+public class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final HandlerTable handlers;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);    // shared by all connections on this loop since reads never overlap
+    private final TimerWheel timers = new TimerWheel(ServerConfig.TIMER_TICK, 512);
+
+    public EventLoop(HandlerTable handlers) throws IOException {
+        this.selector = Selector.open();
+        this.handlers = handlers;
+    }
+
+    // Registers a newly accepted channel, registration has to happen on the loop's own thread
+    public void register(SocketChannel channel, long accepted) {
+        long id = HTTP1Server.nextConnectionId();
+        ServerEvents.Accept accepting = ServerEvents.accept();
+        execute(() -> {
+            Metrics.ACCEPT.record(System.nanoTime() - accepted);
+            Metrics.connectionAccepted();
+            ServerEvents.commit(accepting, id, null, 0, 0);
+            try {
+                channel.configureBlocking(false);
+                NioConnection.open(channel, channel.register(selector, SelectionKey.OP_READ), this, id);
+            } catch (IOException e) {
+                Log.warn("[Error] failed to register client");
+                closeQuietly(channel);
+                HTTP1Server.releaseConnection();
+            }
+        });
+    }
+
+    // Queues a task to be run on this loop's thread and wakes the selector so it runs promptly
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    // Runs the handlers for a batch of complete pipelined requests in order on their stages, then hands their combined responses back to this loop to be written
+    // handled is the number of requests the connection already served, and closing means the client has stopped sending
+    void dispatch(NioConnection connection, List<IncomingRequest> requests, int handled, boolean closing) {
+        dispatch(connection, requests, 0, new ResponseBatch(), handled, closing);
+    }
+
+    // Queues the requests from next on with the stage of the first of them, the responses to those before it are already in the batch
+    // A stage that is full answers its request with a 503 after them and the connection is closed, the requests behind it are never handled
+    private void dispatch(NioConnection connection, List<IncomingRequest> requests, int next, ResponseBatch responses, int handled, boolean closing) {
+        Stage stage = handlers.stageOf(requests.get(next).handler);
+        stage.submit(() -> process(connection, requests, next, responses, handled, closing, stage), () -> {
+            for (int i = next; i < requests.size(); i++) requests.get(i).close();
+            responses.add(Response.of(ClientHandler.withConnectionHeader(HTTP1Server.statusResponse(StatusCode._503), false)));
+            execute(() -> connection.send(responses, false));
+        });
+    }
+
+    // Handles requests in order while they belong to this stage, a request for another stage is handed on to it along with the rest of the batch
+    private void process(NioConnection connection, List<IncomingRequest> requests, int next, ResponseBatch responses, int handled, boolean closing, Stage stage) {
+        boolean keepAlive = false;
+        int i = next;
+        try {
+            for (; i < requests.size(); i++) {
+                IncomingRequest request = requests.get(i);
+                if (i > next && handlers.stageOf(request.handler) != stage) {
+                    dispatch(connection, requests, i, responses, handled, closing);
+                    return;
+                }
+                keepAlive = ClientHandler.processRequest(request, connection.getAddress(), !closing && ++handled < ServerConfig.MAX_KEEP_ALIVE_REQUESTS, responses);
+                if (!keepAlive) break;
+            }
+        } catch (RuntimeException e) {
+            Log.error("[Error] failed to handle client request", e);
+            responses.add(Response.of(ClientHandler.withConnectionHeader(HTTP1Server.statusResponse(StatusCode._500), false)));
+            keepAlive = false;
+        }
+        for (; i < requests.size(); i++) requests.get(i).close();      // the bodies of requests after one that closes the connection are never read
+        final boolean result = keepAlive;
+        execute(() -> connection.send(responses, result));
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(timers.millisUntilNextTick(System.currentTimeMillis()));    // blocks indefinitely while no deadline is pending
+            } catch (IOException e) {
+                Log.error("[Fatal Error] event loop selector failed", e);
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                if (!key.isValid()) continue;
+                if (key.isReadable()) connection.onReadable(readBuffer);
+                if (key.isValid() && key.isWritable()) connection.onWritable();
+            }
+
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) task.run();
+
+            timers.advance(System.currentTimeMillis());
+        }
+    }
+
+    // Tasks handed to this loop that it hasn't run yet, mostly responses waiting to be written
+    int getQueuedTasks() {
+        return pendingTasks.size();
+    }
+
+    HandlerTable getHandlers() {
+        return handlers;
+    }
+
+    TimerWheel getTimers() {
+        return timers;
+    }
+
+    static void closeQuietly(Closeable channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with a channel that failed to close
+        }
+    }
+
+}
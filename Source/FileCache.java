@@ -0,0 +1,332 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps the content and pre-rendered entity headers of small, frequently requested files in memory, bounded by total bytes
+// Lookups are lock free, inserts and removals take a lock since they move the total size and may evict
+// Admission is TinyLFU style, a newcomer only displaces entries requested less often, each the least requested of a small sample so an insert never walks the whole cache
+// Entries are invalidated by a WatchService on the document root, if one can't be started every hit checks the file's modification time and length instead
+public class FileCache {
+
+    public static class Entry {
+        final byte[] content;
+        final byte[] headers;       // Content-Type, Content-Length and Last-Modified, each ending in CRLF
+        final long lastModified;
+
+        public Entry(byte[] content, byte[] headers, long lastModified) {
+            this.content = content;
+            this.headers = headers;
+            this.lastModified = lastModified;
+        }
+
+        long size() {
+            return content.length + headers.length;
+        }
+    }
+
+    private static final FileCache instance = new FileCache(HTTP1Server.DOCUMENT_ROOT, ServerConfig.CACHE_SIZE);
+
+    private final String root;
+    private final long capacity;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long size = 0;         // only changed while holding lock
+    private long invalidations = 0;         // guarded by lock, bumped by every invalidation so a load that raced one is not inserted
+    private final FrequencySketch frequencies = new FrequencySketch(4096);
+    private final ArrayList<String> keys = new ArrayList<>();               // the cached paths in no order, for sampling eviction victims, guarded by lock
+    private final HashMap<String, Integer> positions = new HashMap<>();     // index of each cached path in keys, guarded by lock
+    private static final int SAMPLE = 8;
+    private final boolean watched;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private FileCache(String root, long capacity) {
+        this.root = root;
+        this.capacity = capacity;
+        this.watched = capacity > 0 && startWatcher();
+    }
+
+    // Returns the cached entry for a file, or null when the file has to be read from disk
+    public static Entry lookup(File file) {
+        if (instance.capacity <= 0) return null;
+        String key = file.getPath();
+        instance.frequencies.increment(key);
+        Entry entry = instance.entries.get(key);
+        if (entry != null && !instance.watched && (file.lastModified() != entry.lastModified || file.length() != entry.content.length)) {
+            instance.invalidate(key);
+            entry = null;
+        }
+        if (entry == null) instance.misses.increment();
+        else instance.hits.increment();
+        return entry;
+    }
+
+    // Whether a file of this length is worth reading into memory, larger ones are sent straight from disk
+    public static boolean fits(long length) {
+        return instance.capacity > 0 && length <= ServerConfig.CACHE_MAX_FILE_SIZE && length <= instance.capacity;
+    }
+
+    // Taken before a file is read, and handed back to insert so a change to the file during the read can't leave stale content cached
+    public static long generation() {
+        instance.lock.lock();
+        try {
+            return instance.invalidations;
+        } finally {
+            instance.lock.unlock();
+        }
+    }
+
+    // Caches a freshly read file, evicting infrequently requested entries to make room
+    // The file is only admitted if it has been requested at least as often as every entry it would displace
+    public static void insert(File file, long generation, Entry entry) {
+        String key = file.getPath();
+        if (!fits(entry.content.length) || !key.startsWith(instance.root + File.separator) || !file.toPath().normalize().toString().equals(key)) return;    // only files the watcher can see
+        instance.insert(key, generation, entry);
+    }
+
+    private void insert(String key, long generation, Entry entry) {
+        lock.lock();
+        try {
+            if (generation != invalidations || entry.size() > capacity) return;
+            Entry previous = entries.get(key);
+            long needed = size - (previous == null ? 0 : previous.size()) + entry.size() - capacity;
+            if (needed > 0) {
+                // Victims are only picked until there is room, nothing is evicted unless the newcomer beats all of them
+                int frequency = frequencies.frequency(key);
+                ArrayList<String> victims = new ArrayList<>();
+                for (long freed = 0; freed < needed;) {
+                    String victim = sampleVictim(key, victims);
+                    if (victim == null || frequencies.frequency(victim) > frequency) return;    // what would go is more popular
+                    victims.add(victim);
+                    freed += entries.get(victim).size();
+                }
+                for (String victim : victims) {
+                    size -= entries.remove(victim).size();
+                    untrack(victim);
+                    evictions.increment();
+                }
+            }
+            previous = entries.put(key, entry);
+            if (previous != null) size -= previous.size();
+            else track(key);
+            size += entry.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The least requested of up to SAMPLE cached paths read from a random place in keys, leaving out the newcomer and the victims already picked
+    // Must be called holding lock, returns null when there is nothing left to evict
+    private String sampleVictim(String newcomer, List<String> picked) {
+        String victim = null;
+        int lowest = Integer.MAX_VALUE;
+        int start = keys.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(keys.size());
+        for (int i = 0, sampled = 0; i < keys.size() && sampled < SAMPLE; i++) {
+            String candidate = keys.get((start + i) % keys.size());
+            if (candidate.equals(newcomer) || picked.contains(candidate)) continue;
+            sampled++;
+            int frequency = frequencies.frequency(candidate);
+            if (frequency < lowest) {
+                victim = candidate;
+                lowest = frequency;
+            }
+        }
+        return victim;
+    }
+
+    // Must be called holding lock
+    private void track(String key) {
+        positions.put(key, keys.size());
+        keys.add(key);
+    }
+
+    // Must be called holding lock, the last path is moved into the freed slot so removal is constant time
+    private void untrack(String key) {
+        Integer position = positions.remove(key);
+        if (position == null) return;
+        String last = keys.remove(keys.size() - 1);
+        if (position < keys.size()) {
+            keys.set(position, last);
+            positions.put(last, position);
+        }
+    }
+
+    // Drops a path and, in case it was a directory, everything below it
+    private void invalidate(String path) {
+        lock.lock();
+        try {
+            invalidations++;
+            Entry removed = entries.remove(path);
+            if (removed != null) {
+                size -= removed.size();
+                untrack(path);
+            }
+            String prefix = path + File.separator;
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Entry> entry = it.next();
+                if (!entry.getKey().startsWith(prefix)) continue;
+                it.remove();
+                size -= entry.getValue().size();
+                untrack(entry.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidateAll() {
+        lock.lock();
+        try {
+            invalidations++;
+            entries.clear();
+            keys.clear();
+            positions.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static long getHits() {
+        return instance.hits.sum();
+    }
+
+    public static long getMisses() {
+        return instance.misses.sum();
+    }
+
+    public static long getEvictions() {
+        return instance.evictions.sum();
+    }
+
+    public static long getSize() {
+        return instance.size;
+    }
+
+    public static int getEntryCount() {
+        return instance.entries.size();
+    }
+
+    /*
+    *--------- Invalidation --------------
+    */
+
+    private boolean startWatcher() {
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            register(watcher, Paths.get(root));
+            Thread thread = new Thread(() -> watch(watcher), "file-cache-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            return true;
+        } catch (IOException e) {
+            Log.warn("[Warning] failed to watch " + root + ", cached files will be checked for changes on every hit");
+            return false;
+        }
+    }
+
+    // Watches a directory and every directory below it, a WatchService only reports changes to a directory's direct children
+    private static void register(WatchService watcher, Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;      // unreadable directories can't be served either
+            }
+        });
+    }
+
+    private void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    invalidateAll();        // events were lost, nothing cached can be trusted
+                    continue;
+                }
+                Path changed = directory.resolve((Path) event.context());
+                invalidate(changed.toString());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        register(watcher, changed);
+                    } catch (IOException e) {
+                        Log.warn("[Warning] failed to watch " + changed);
+                    }
+                }
+            }
+            if (!key.reset()) invalidate(directory.toString());     // the directory itself went away
+        }
+    }
+
+    /*
+    *--------- Frequency Estimation --------------
+    */
+
+    // Count-min sketch of how often each path was requested recently, including paths that aren't cached
+    // Four 4 bit counters per path are kept in one long per row and every count is halved after width * 10 increments so old popularity fades
+    // Updates aren't atomic, a lost increment only makes the estimate slightly lower
+    private static class FrequencySketch {
+
+        private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+
+        private final long[] table;
+        private final int mask;
+        private final int resetAt;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int width) {
+            this.table = new long[width];
+            this.mask = width - 1;
+            this.resetAt = width * 10;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                int shift = counterShift(hash, i);
+                if (((table[index] >>> shift) & 0xF) < 15) table[index] += 1L << shift;
+            }
+            if (additions.incrementAndGet() >= resetAt) halve();
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) frequency = (int) Math.min(frequency, (table[index(hash, i)] >>> counterShift(hash, i)) & 0xF);
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            return (int) ((hash * SEEDS[row]) >>> 40) & mask;
+        }
+
+        // Each long holds sixteen counters, the row picks which group of four a path uses
+        private int counterShift(int hash, int row) {
+            return ((row << 2) + ((int) ((hash * SEEDS[row]) >>> 62))) << 2;
+        }
+
+        private void halve() {
+            additions.set(0);
+            for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+    }
+
+}
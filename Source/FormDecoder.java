@@ -0,0 +1,111 @@
+import java.io.*;
+
+// Removes the escapes from a form body as it streams to a CGI program, a '!' followed by one of !*'();:@$+,/?#[] or whitespace is dropped and the character after it kept
+// An escaped character is a literal and never starts another escape, with percent decoding on %XX becomes its byte and '+' a space as in application/x-www-form-urlencoded
+// Each byte is looked at once, so decoding is linear in the body's length, and a malformed %-sequence is passed through as it is
+public class FormDecoder extends FilterInputStream {
+
+    private static final boolean[] ESCAPABLE = new boolean[256];
+    private static final byte[] HEX = new byte[256];
+    static {
+        for (char c : "!*'();:@$+,/?#[] \t\n\u000B\f\r".toCharArray()) ESCAPABLE[c] = true;
+        java.util.Arrays.fill(HEX, (byte) -1);
+        for (int i = 0; i < 10; i++) HEX['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX['a' + i] = (byte) (10 + i);
+            HEX['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final boolean percent;
+    private final byte[] buffer = new byte[8 * 1024];
+    private int position = 0;
+    private int limit = 0;
+    private boolean exhausted = false;
+
+    public FormDecoder(InputStream in) {
+        this(in, false);
+    }
+
+    public FormDecoder(InputStream in, boolean percent) {
+        super(in);
+        this.percent = percent;
+    }
+
+    // The whole of a body already in memory, for callers that don't stream
+    public static byte[] decode(byte[] body, boolean percent) {
+        try (FormDecoder decoder = new FormDecoder(new ByteArrayInputStream(body), percent)) {
+            return decoder.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);      // an array can't fail to be read
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    // Decodes as much as is available without blocking once at least one byte is out, so output keeps flowing as the body arrives
+    // Only an escape split across two reads waits for the rest of it
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        int count = 0;
+        while (count < length) {
+            if (position == limit && (count > 0 && in.available() <= 0 || !fill(1))) break;
+            byte b = buffer[position];
+            if (b == '!' && fill(2) && ESCAPABLE[buffer[position + 1] & 0xFF]) {
+                target[offset + count++] = buffer[position + 1];
+                position += 2;
+            } else if (percent && b == '%' && fill(3) && HEX[buffer[position + 1] & 0xFF] >= 0 && HEX[buffer[position + 2] & 0xFF] >= 0) {
+                target[offset + count++] = (byte) (HEX[buffer[position + 1] & 0xFF] << 4 | HEX[buffer[position + 2] & 0xFF]);
+                position += 3;
+            } else {
+                target[offset + count++] = percent && b == '+' ? (byte) ' ' : b;
+                position++;
+            }
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    // Makes sure at least needed bytes are buffered, returns false if the body ends first
+    private boolean fill(int needed) throws IOException {
+        if (limit - position >= needed) return true;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < needed && !exhausted) {
+            int readin = in.read(buffer, limit, buffer.length - limit);
+            if (readin == -1) exhausted = true;
+            else limit += readin;
+        }
+        return limit >= needed;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] discard = new byte[(int) Math.min(n, buffer.length)];
+        long skipped = 0;
+        while (skipped < n) {
+            int readin = read(discard, 0, (int) Math.min(n - skipped, discard.length));
+            if (readin == -1) break;
+            skipped += readin;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - position > 2 ? 1 : 0;      // at least one byte decodes from what is buffered, escapes shrink the rest
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Finishes closing blocking mode connections on one background selector thread so no worker waits on a slow client
+// Once a response is written the output side is shut down, then anything the client still sends is drained until it closes or the linger time runs out
+public class GracefulCloser implements Runnable {
+
+    private static final GracefulCloser instance = start();
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final TimerWheel timers = new TimerWheel(ServerConfig.TIMER_TICK, 512);
+    private final ByteBuffer drainBuffer = ByteBuffer.allocateDirect(8 * 1024);
+
+    private GracefulCloser() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    private static GracefulCloser start() {
+        try {
+            GracefulCloser closer = new GracefulCloser();
+            Thread thread = new Thread(closer, "graceful-closer");
+            thread.setDaemon(true);
+            thread.start();
+            return closer;
+        } catch (IOException e) {
+            Log.error("[Error] failed to start graceful closer, connections will be closed immediately");
+            return null;
+        }
+    }
+
+    // Half closes a channel whose response has already been written and hands it off to be drained
+    public static void close(SocketChannel channel) throws IOException {
+        if (instance == null || ServerConfig.LINGER_TIMEOUT <= 0) {
+            channel.close();
+            return;
+        }
+        try {
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            channel.close();     // client already went away, nothing to linger for
+            return;
+        }
+        instance.pendingChannels.add(channel);
+        instance.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(timers.millisUntilNextTick(System.currentTimeMillis()));
+            } catch (IOException e) {
+                Log.error("[Error] graceful closer selector failed", e);
+                return;
+            }
+
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) register(channel);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) drain(key);
+            }
+
+            timers.advance(System.currentTimeMillis());
+        }
+    }
+
+    private void register(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(timers.schedule(ServerConfig.LINGER_TIMEOUT, () -> finish(key)));
+        } catch (IOException e) {
+            EventLoop.closeQuietly(channel);
+        }
+    }
+
+    // Discards whatever the client sent after its request, closing once it reaches end of stream
+    private void drain(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            int readin;
+            do {
+                drainBuffer.clear();
+                readin = channel.read(drainBuffer);
+            } while (readin > 0);
+            if (readin == -1) finish(key);
+        } catch (IOException e) {
+            finish(key);
+        }
+    }
+
+    private void finish(SelectionKey key) {
+        ((TimerWheel.Timeout) key.attachment()).cancel();
+        key.cancel();
+        EventLoop.closeQuietly(key.channel());
+    }
+
+}
@@ -2,29 +2,33 @@ import java.net.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.regex.Pattern;
-import java.text.SimpleDateFormat;
-import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.AccessDeniedException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 
 public class HTTP1Server {
 
     public static int PORT;
-    public static final String SUPPORTED_VERSION = "HTTP/1.0";
+    public static final String SUPPORTED_VERSION = "HTTP/1.1";
     public static final int MAXIMUM_THREAD_COUNT = 50; 
     public final static String CRLF  = "" + (char) 0x0D + (char) 0x0A; 
+    public static final String DOCUMENT_ROOT = documentRoot();     // files are served from the directory the server was started in
 
-    private static int activeThreadCount;
-    private static HashMap<String, RequestHandler> handlerMap;
+    private static final AtomicInteger activeThreadCount = new AtomicInteger();
+    private static final AtomicLong connectionIds = new AtomicLong();
+    private static final byte[] SERVICE_UNAVAILABLE = ClientHandler.withConnectionHeader(statusResponse(StatusCode._503), false);
+    private static HandlerTable handlers;
+    private static final int MAX_RANGES = 16;       // a Range header asking for more pieces than this is answered with the whole body
     
     public static void main(String[] args) {
 
-        ExecutorService executor = Executors.newCachedThreadPool();
-
-        if (args.length != 1) {
-            System.err.println("[Fatal Error] First argument must be the port number for the server to listen on");
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("[Fatal Error] First argument must be the port number for the server to listen on, optionally followed by the server mode (blocking, virtual or nio)");
             return;
         }
 
@@ -36,51 +40,171 @@ public class HTTP1Server {
             return;
         }
 
-        try(ServerSocket serverSocket = new ServerSocket(PORT)) {
-	
-            // Maps a given function name to it's defined method
-            handlerMap = new HashMap<>();
-            handlerMap.put("GET", HTTP1Server::GET);
-            handlerMap.put("POST", HTTP1Server::POST);
-            handlerMap.put("HEAD", HTTP1Server::HEAD);
-            // The following functions are not implimented
-            handlerMap.put("PUT", (request) ->  (SUPPORTED_VERSION + " "  + StatusCode._501.toString()).getBytes());
-            handlerMap.put("DELETE", (request) ->(SUPPORTED_VERSION + " "  + StatusCode._501.toString()).getBytes());
-            handlerMap.put("LINK", (request) ->  (SUPPORTED_VERSION + " "  + StatusCode._501.toString()).getBytes());
-            handlerMap.put("UNLINK", (request) ->  (SUPPORTED_VERSION + " "  + StatusCode._501.toString()).getBytes());
-            
-            activeThreadCount = 0;
-
-            Socket clientSocket;
-            while ((clientSocket = serverSocket.accept()) != null) {
-                // Accepts a new connection from a client and submits it to a thread executor to be handled by the thread handler
-                incrimentActiveCount();
-                System.out.println("New Connection From: " + clientSocket.getInetAddress() + " Active Connections: " + getActiveCount());
-                executor.submit(new ClientHandler(clientSocket, handlerMap, getActiveCount()));
+        // Maps a given method name to it's defined handler
+        handlers = new HandlerTable();
+        handlers.put("GET", Metrics.serving(ServerConfig.METRICS_PATH, HTTP1Server::GET));
+        handlers.put("POST", HTTP1Server::POST, Stage.CGI);
+        handlers.put("HEAD", HTTP1Server::HEAD);
+        // The following functions are not implimented
+        handlers.put("PUT", buffered((request) ->  statusResponse(StatusCode._501)));
+        handlers.put("DELETE", buffered((request) ->statusResponse(StatusCode._501)));
+        handlers.put("LINK", buffered((request) ->  statusResponse(StatusCode._501)));
+        handlers.put("UNLINK", buffered((request) ->  statusResponse(StatusCode._501)));
+
+        ServerEvents.startRecording();
+
+        String mode = args.length > 1 ? args[1] : "blocking";
+        switch (mode) {
+            case "blocking":
+                // The thread limit is split between the acceptors' pools so that more acceptors don't mean more threads
+                serveBlocking(() -> boundedPool(Math.max(1, (MAXIMUM_THREAD_COUNT + ServerConfig.ACCEPTORS - 1) / ServerConfig.ACCEPTORS)));
+                break;
+            case "virtual":
+                serveBlocking(Executors::newVirtualThreadPerTaskExecutor);
+                break;
+            case "nio":
+                SelectorServer.serve(PORT, handlers);
+                break;
+            default:
+                System.err.println("[Fatal Error] Unknown server mode " + mode + ", expected blocking, virtual or nio");
+        }
+
+    }
+
+    // Every accepted connection is handled start to finish by a ClientHandler on a worker group, either a bounded pool or one virtual thread per connection
+    // Each listening socket has an acceptor thread and a worker group of its own, so acceptors share nothing but the connection count
+    private static void serveBlocking(Supplier<ExecutorService> workerGroup) {
+
+        ServerSocketChannel[] listeners;
+        try {
+            listeners = listen(PORT);
+        } catch (IOException e) {
+            Log.error("[Fatal Error] Failed to set up server", e);
+            return;
+        }
+
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            ExecutorService group = workerGroup.get();
+            new Thread(() -> acceptBlocking(listener, group), "acceptor-" + i).start();
+        }
+        acceptBlocking(listeners[0], workerGroup.get());
+
+    }
+
+    private static void acceptBlocking(ServerSocketChannel listener, ExecutorService executor) {
+
+        // Sockets are accepted through a channel so that the graceful close can drain them without blocking
+        try(ServerSocketChannel serverChannel = listener) {
+
+            SocketChannel clientChannel;
+            while ((clientChannel = serverChannel.accept()) != null) {
+                Socket clientSocket = clientChannel.socket();
+                // Accepts a new connection from a client and submits it to a thread executor to be handled by the thread handler, over the limit it is turned away right here
+                if (!tryReserveConnection()) {
+                    rejectConnection(clientChannel);
+                    continue;
+                }
+                if (Log.isEnabled(Log.Level.DEBUG)) Log.debug("New Connection From: " + clientSocket.getInetAddress() + " Active Connections: " + getActiveCount());
+                try {
+                    executor.execute(new ClientHandler(clientSocket, handlers, System.nanoTime()));
+                } catch (RejectedExecutionException e) {
+                    releaseConnection();
+                    rejectConnection(clientChannel);
+                }
             }
 
         } catch (IOException e) {
-            System.err.println("[Fatal Error] Failed to set up server");
-            e.printStackTrace();
+            Log.error("[Fatal Error] Failed to accept connections", e);
         }
 
     }
 
+    // Opens the listening sockets, one per acceptor, more than one are all bound to the port with SO_REUSEPORT so the kernel balances new connections across them
+    // A single acceptor binds without it, so a second server started on the same port still fails rather than quietly taking half the connections
+    static ServerSocketChannel[] listen(int port) throws IOException {
+        int count = Math.max(1, ServerConfig.ACCEPTORS);
+        ServerSocketChannel[] listeners = new ServerSocketChannel[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                listeners[i] = ServerSocketChannel.open();
+                if (count > 1 && !listeners[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    Log.warn("SO_REUSEPORT isn't supported on this platform, accepting on a single socket");
+                    listeners[i].bind(new InetSocketAddress(port));
+                    return new ServerSocketChannel[] { listeners[i] };
+                }
+                if (count > 1) listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                listeners[i].bind(new InetSocketAddress(port));
+                port = ((InetSocketAddress) listeners[i].getLocalAddress()).getPort();     // an ephemeral port has to be the same one for every acceptor
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) if (listener != null) EventLoop.closeQuietly(listener);
+            throw e;
+        }
+        return listeners;
+    }
+
     /*
     *--------- Helper Methods --------------
     */
 
-    // Both static functions used to interface with the static activeThreadCount variable are synchronized in order to restrict only 1 thread to access either at a time
-    public synchronized static int getActiveCount() {
-        return activeThreadCount;
+    // A fixed size pool whose queue is bounded too, so a burst can't pile up unbounded work behind the workers
+    static ThreadPoolExecutor boundedPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(ServerConfig.QUEUE_LIMIT));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // The active count is atomic rather than guarded by synchronized, which would pin a virtual thread to its carrier while held
+    public static int getActiveCount() {
+        return activeThreadCount.get();
     }
 
-    public synchronized static void incrimentActiveCount() {
-        activeThreadCount++;
+    // Reserves a place for a new connection with compare and set, so concurrent acceptors can never push the count past the limit
+    // Every successful reservation has to be matched by exactly one releaseConnection
+    public static boolean tryReserveConnection() {
+        int current;
+        do {
+            current = activeThreadCount.get();
+            if (current >= MAXIMUM_THREAD_COUNT) return false;
+        } while (!activeThreadCount.compareAndSet(current, current + 1));
+        return true;
     }
 
-    public synchronized static void decrimentActiveCount() {
-        activeThreadCount--;
+    public static void releaseConnection() {
+        activeThreadCount.decrementAndGet();
+    }
+
+    // Numbers connections in the order they are accepted, the recorded phases of a request carry it
+    static long nextConnectionId() {
+        return connectionIds.incrementAndGet();
+    }
+
+    // Turns a connection away on the accepting thread with the pre-encoded 503, it never reaches a worker
+    static void rejectConnection(SocketChannel channel) {
+        Log.info("Connection from " + channel.socket().getInetAddress() + " denied: Maximum connected clients reached");
+        Metrics.connectionRejected();
+        Metrics.countStatus(StatusCode._503);
+        try {
+            channel.configureBlocking(false);
+            Metrics.bytesOut(channel.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE)));     // a fresh socket's send buffer always has room for it
+            GracefulCloser.close(channel);
+        } catch (IOException e) {
+            EventLoop.closeQuietly(channel);
+        }
+    }
+
+    private static String documentRoot() {
+        try {
+            return new File(".").getCanonicalPath();
+        } catch (IOException e) {
+            return new File("").getAbsolutePath();
+        }
+    }
+
+    // Builds a response made up of only a status line, with an empty body so that a persistent connection can carry on after it
+    static byte[] statusResponse(StatusCode status) {
+        return HeaderWriter.begin(status).header(HeaderWriter.CONTENT_LENGTH, 0).finish();
     }
 
     private static String getMimeType(String path) {
@@ -96,6 +220,21 @@ public class HTTP1Server {
             case "txt":
                 mimeType = "text/plain";
                 break;
+            case "css":
+                mimeType = "text/css";
+                break;
+            case "js":
+                mimeType = "application/javascript";
+                break;
+            case "json":
+                mimeType = "application/json";
+                break;
+            case "xml":
+                mimeType = "application/xml";
+                break;
+            case "svg":
+                mimeType = "image/svg+xml";
+                break;
             case "jpg":
             case "jpeg":
                 mimeType = "image/jpeg";
@@ -137,145 +276,264 @@ public class HTTP1Server {
         return Arrays.copyOfRange(buf,0, offset);
     }
 
-    private static String getHeaders(File file) throws FileNotFoundException, AccessDeniedException, UnsupportedEncodingException {
-
-        SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy kk:mm:ss z");
-        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+    // Checks the file can be served and writes the headers describing it
+    private static HeaderWriter getHeaders(HeaderWriter writer, File file) throws FileNotFoundException, AccessDeniedException {
 
         // Throw exception if we can't create the headers
         if(!file.exists()) throw new FileNotFoundException();
         if(!file.canRead()) throw new AccessDeniedException("Couldn't read file");
 
-	return getHeaders(file.length(), getMimeType(file.getName()), sdf.format(new Date(file.lastModified())));
+	long length = file.length();
+	long lastModified = file.lastModified();
+	return getEntityHeaders(writer, length, getMimeType(file.getName()), lastModified, null, Validators.etag(file.getPath(), lastModified, length));
+
+    }
+
+    // The headers that only depend on the body, these are what the file cache keeps pre-rendered, Last-Modified is left out when lastModified is negative
+    // encoding is null for the identity body, ranges are only offered on that one and Vary tells caches a compressible type depends on Accept-Encoding
+    // etag is null to leave ETag out, the cache's headers do since a tag can turn from weak to strong while the entry lives
+    private static HeaderWriter getEntityHeaders(HeaderWriter writer, long contentLength, String mimeType, long lastModified, String encoding, String etag) {
+        if (mimeType != null) writer.header(HeaderWriter.CONTENT_TYPE, mimeType);
+        writer.header(HeaderWriter.CONTENT_LENGTH, contentLength);
+        if (lastModified >= 0) writer.header(HeaderWriter.LAST_MODIFIED, HttpDate.format(lastModified));
+        if (etag != null) writer.header(HeaderWriter.ETAG, etag);
+        if (encoding == null) writer.write(HeaderWriter.CONTENT_ENCODING).write(HeaderWriter.ACCEPT_RANGES);
+        else writer.header(HeaderWriter.CONTENT_ENCODING_NAME, encoding);
+        if (CompressionCache.isCompressible(mimeType)) writer.write(HeaderWriter.VARY);
+        return writer;
+    }
+
+    // Sends a compressed variant of a file, a pre-built .gz sibling when there is an up to date one, otherwise the file compressed once and kept in the compression cache
+    // identity is the file's content when it was already read, returns false when the identity body should be sent instead
+    private static boolean getCompressed(ResponseSink response, File file, byte[] identity, String encoding, String mimeType, long lastModified, String etag) throws IOException {
+        CompressionCache.Variant variant = CompressionCache.get(file.getPath(), lastModified, encoding);
+        if (variant == null && encoding.equals("gzip")) {
+            File sibling = new File(file.getPath() + ".gz");
+            if (sibling.isFile() && sibling.lastModified() >= lastModified) {
+                FileChannel content = FileChannel.open(sibling.toPath(), StandardOpenOption.READ);
+                long length = content.size();
+                getEntityHeaders(response.status(StatusCode._200), length, mimeType, lastModified, encoding, Validators.forEncoding(etag, encoding)).generalHeaders();
+                response.transfer(content, 0, length);
+                return true;
+            }
+        }
+        if (variant == null) {
+            if (identity == null && file.length() > ServerConfig.COMPRESS_MAX_FILE_SIZE) return false;     // too big to compress while the client waits
+            variant = CompressionCache.compress(file.getPath(), lastModified, encoding, identity != null ? identity : getFileContent(file));
+        }
+        if (variant.bytes == null) return false;
+        getEntityHeaders(response.status(StatusCode._200), variant.bytes.length, mimeType, lastModified, encoding, Validators.forEncoding(etag, encoding)).generalHeaders();
+        response.write(variant.bytes);
+        return true;
+    }
+
+    // Evaluates If-Match, If-None-Match and If-Modified-Since in that order against the representation that would be sent, returns false when it should be sent
+    // If-None-Match is compared weakly and, when present, If-Modified-Since is ignored, a tag for either the identity or the negotiated encoding matches
+    // Last-Modified only carries whole seconds, so If-Modified-Since is compared at that precision
+    private static boolean getConditional(ResponseSink response, String etag, String encoding, String mimeType, long lastModified, String ifMatch, String ifNoneMatch, String ifModifiedSince) {
+        String variantTag = Validators.forEncoding(etag, encoding);
+        if (ifMatch != null && !Validators.strongMatch(ifMatch, etag, variantTag)) {
+            response.sendStatus(StatusCode._412).generalHeaders();
+            return true;
+        }
+
+        boolean notModified = false;
+        if (ifNoneMatch != null) notModified = Validators.weakMatch(ifNoneMatch, etag, variantTag);
+        else if (ifModifiedSince != null) {
+            long since = HttpDate.parse(ifModifiedSince);
+            notModified = since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        if (!notModified) return false;
+
+        // A 304 never carries a body, so it is only a head, with the Date caches check its freshness headers against
+        HeaderWriter writer = response.status(StatusCode._304).header(HeaderWriter.ETAG, variantTag).generalHeaders();
+        if (CompressionCache.isCompressible(mimeType)) writer.write(HeaderWriter.VARY);
+        return true;
+    }
+
+    // Answers a Range request over a body held either in content or in file, returns false when the whole body should be sent instead
+    // Once it answers the response owns file, a 416 closes it since nothing will be sent from it, etag is null for bodies without one
+    private static boolean getRange(ResponseSink response, String range, String ifRange, String mimeType, long lastModified, long length, byte[] content, FileChannel file, String etag) {
+        if (range == null) return false;
+        if (ifRange != null && !(ifRange.startsWith("\"") ? etag != null && Validators.strongMatch(ifRange, etag) : lastModified >= 0 && ifRange.equals(HttpDate.format(lastModified)))) {
+            return false;       // the client's copy is out of date, it needs the whole of the current one
+        }
+        long[][] ranges = parseRanges(range, length);
+        if (ranges == null) return false;       // a malformed Range header is ignored
+
+        if (ranges.length == 0) {
+            if (file != null) EventLoop.closeQuietly(file);
+            response.status(StatusCode._416).header(HeaderWriter.CONTENT_RANGE, "bytes */" + length).header(HeaderWriter.CONTENT_LENGTH, 0);
+            return true;
+        }
+
+        if (ranges.length == 1) {
+            long start = ranges[0][0], end = ranges[0][1];
+            HeaderWriter writer = response.status(StatusCode._206);
+            if (mimeType != null) writer.header(HeaderWriter.CONTENT_TYPE, mimeType);
+            writer.header(HeaderWriter.CONTENT_LENGTH, end - start + 1).header(HeaderWriter.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            if (lastModified >= 0) writer.header(HeaderWriter.LAST_MODIFIED, HttpDate.format(lastModified));
+            if (etag != null) writer.header(HeaderWriter.ETAG, etag);
+            writer.write(HeaderWriter.ACCEPT_RANGES).generalHeaders();
+            slice(response, content, file, start, end);
+            return true;
+        }
 
+        // Several ranges go out as a multipart/byteranges body, each part's headers sit in memory between the slices of the file
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[][] partHeads = new byte[ranges.length][];
+        long bodyLength = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            long start = ranges[i][0], end = ranges[i][1];
+            partHeads[i] = (CRLF + "--" + boundary + CRLF + (mimeType != null ? "Content-Type: " + mimeType + CRLF : "") + "Content-Range: bytes " + start + "-" + end + "/" + length + CRLF + CRLF).getBytes();
+            bodyLength += partHeads[i].length + end - start + 1;
+        }
+        byte[] closing = (CRLF + "--" + boundary + "--" + CRLF).getBytes();
+        bodyLength += closing.length;
+
+        HeaderWriter writer = response.status(StatusCode._206).header(HeaderWriter.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary).header(HeaderWriter.CONTENT_LENGTH, bodyLength);
+        if (lastModified >= 0) writer.header(HeaderWriter.LAST_MODIFIED, HttpDate.format(lastModified));
+        if (etag != null) writer.header(HeaderWriter.ETAG, etag);
+        writer.write(HeaderWriter.ACCEPT_RANGES).generalHeaders();
+        for (int i = 0; i < ranges.length; i++) {
+            response.write(partHeads[i]);
+            slice(response, content, file, ranges[i][0], ranges[i][1]);
+        }
+        response.write(closing);
+        return true;
     }
-      
-    private static String getHeaders(long contentLength, String mimeType, String lastModified) throws UnsupportedEncodingException {
 
-        LocalDateTime myDateObj = LocalDateTime.now();
-        DateTimeFormatter myFormatObj = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        String formattedDate = myDateObj.format(myFormatObj);
-	String encodedDateTime = URLEncoder.encode(formattedDate, "UTF-8");
+    private static void slice(ResponseSink response, byte[] content, FileChannel file, long start, long end) {
+        if (content != null) response.write(content, (int) start, (int) (end - start + 1));
+        else response.transfer(file, start, end - start + 1);
+    }
 
-	String headers = "";
-        if (mimeType != null) headers += "Content-Type: " + mimeType + CRLF;
-        headers += "Content-Length: " + contentLength + CRLF;
-        if (lastModified != null) headers += "Last-Modified: " + lastModified + CRLF;
-        headers += "Expires: Tue, 1 Jan 2021 1:00:00 GMT" + CRLF;
-        headers += "Allow: GET, POST, HEAD" + CRLF;
-        headers += "Content-Encoding: identity" + CRLF;
-        headers += "Set-Cookie: lasttime=" + encodedDateTime;
+    // Parses a header like "bytes=0-99, 200-, -50" into inclusive start and end pairs clipped to the body, sorted and with overlapping or touching ranges merged
+    // Ranges starting past the end of the body are dropped, so an empty result means nothing asked for can be sent, null means the header is malformed or asks for too many pieces
+    private static long[][] parseRanges(String range, long length) {
+        if (!range.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        ArrayList<long[]> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.strip();
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            long start;
+            long end;
+            if (dash == 0) {       // the last n bytes
+                long suffix = parseDigits(spec.substring(1));
+                if (suffix < 0) return null;
+                if (suffix == 0) continue;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = parseDigits(spec.substring(0, dash));
+                if (start < 0) return null;
+                if (dash == spec.length() - 1) end = length - 1;       // from start to the end of the body
+                else {
+                    end = parseDigits(spec.substring(dash + 1));
+                    if (end < start) return null;
+                    end = Math.min(end, length - 1);
+                }
+            }
+            if (start >= length) continue;
+            ranges.add(new long[] { start, end });
+        }
 
-        return headers;
+        ranges.sort(Comparator.comparingLong(pair -> pair[0]));
+        ArrayList<long[]> merged = new ArrayList<>();
+        for (long[] pair : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && pair[0] <= last[1] + 1) last[1] = Math.max(last[1], pair[1]);
+            else merged.add(pair);
+        }
+        return merged.toArray(new long[0][]);
+    }
 
+    // Returns the value of a string of decimal digits, or -1 if it is empty, has anything else in it or is too large
+    private static long parseDigits(String digits) {
+        if (digits.isEmpty() || digits.length() > 18) return -1;
+        long value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
     }
 
-    private static byte[] checkExecutable(String path) {
+    private static StatusCode checkExecutable(String path) {
 
         if (!path.endsWith(".cgi")) {
-            String response = SUPPORTED_VERSION + " "  + StatusCode._405;
-            return response.getBytes();
+            return StatusCode._405;
         }
 
         String cwd = "";
         try {
             cwd = new java.io.File(".").getCanonicalPath();
         } catch (Exception e) {
-            e.printStackTrace();
-            String response = SUPPORTED_VERSION + " "  + StatusCode._500;
-            return response.getBytes();
+            Log.error("[Error] failed to resolve the working directory", e);
+            return StatusCode._500;
         }
 
         File file = new File(cwd + "/"+ path);
 
         if (!file.exists()) {
-            String response = SUPPORTED_VERSION + " "  + StatusCode._404;
-            return response.getBytes();
+            return StatusCode._404;
         }
         if (!file.canExecute()) {
-            String response = SUPPORTED_VERSION + " "  + StatusCode._403;
-            return response.getBytes();
+            return StatusCode._403;
         }
 
         return null;
     }
 
-    private static String decode(String string) {
-        
-        ArrayList<Integer> arr = new ArrayList<>();    
-        for(int i=0;i<string.length();i++) {   
-                if(i<string.length()-1 && Pattern.matches("^[!][!*'();:@$+,/?#\\[\\]\\s\\t]", string.substring(i,i+2))) {        
-                    arr.add(i);                    
-                    i=i+1;                    
-                }
-        }
-
-        String str3="";
-
-        int val =0;
-        for(int i=0;i<string.length();i++) {    
-            //1 == 1,3    
-            for(int j=0;j<arr.size();j++) {        
-                //1==1
-                if(arr.get(j)==i) {
-                    val=1;            
-                }
-            }    
-            if(val==1) {
-                val=0;
-                continue;//starts the i th lopp again    
-            }else {
-                
-                str3=str3+string.charAt(i);
-                val=0;
-                
-            }
-        }        
-
-    	return str3;
+    // The CGI variables a program is run with, whether once per request or by a persistent worker
+    private static Map<String, String> cgiEnvironment(String program, long encoded_length, String from, String userAgent) throws UnknownHostException {
+        Map<String, String> environment = new HashMap<>();
+        environment.put("CONTENT_LENGTH", encoded_length + "");
+        environment.put("SCRIPT_NAME", program);
+        environment.put("SERVER_NAME", InetAddress.getLocalHost().getHostName());
+        environment.put("SERVER_PORT", PORT + "");
+        if (from != null) environment.put("HTTP_FROM", from);
+        if (userAgent != null) environment.put("HTTP_USER_AGENT", userAgent);
+        return environment;
     }
 
-    private static String execute(String program, int encoded_length, String params, String from, String userAgent) {
+    // Starts the program with the request's body piped to its stdin, its output is left for the response to stream, returns null if it couldn't be started
+    private static Process execute(String program, Map<String, String> environment, InputStream body) {
 
         try {
 
             ProcessBuilder builder = new ProcessBuilder("./" + program);
+            builder.environment().putAll(environment);
 
-            // builder.environment().put("CONTENT_LENGTH", params.length() + "");
-            builder.environment().put("CONTENT_LENGTH", encoded_length + "");
-            builder.environment().put("SCRIPT_NAME", program);
-            builder.environment().put("SERVER_NAME", InetAddress.getLocalHost().getHostName());
-            builder.environment().put("SERVER_PORT", PORT + "");
-            if (from != null) builder.environment().put("HTTP_FROM", from);
-            if (userAgent!= null) builder.environment().put("HTTP_USER_AGENT", userAgent);
-
-
+            long started = System.nanoTime();
             Process p = builder.start();
-
-            BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
-
-            if (params != null && bWriter != null) {
-                bWriter.write(params);
-                bWriter.close();
-            }
-
-            BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-            String programOutput= "";
-            String currentLine = null;
-            while ((currentLine = input.readLine()) != null)
-                programOutput += currentLine + "\n";
-            
-            // if (programOutput.length() == 0) return programOutput;
-            return programOutput;
+            Metrics.cgiSpawned(false, System.nanoTime() - started);
+            feed(program, body, p.getOutputStream());
+            return p;
     
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("[Error] failed to execute " + program, e);
             return null;
         }
 
     }
 
+    // Copies a body to a program's stdin on its own thread and closes both, so a program that answers before reading all of its input can't deadlock against the server
+    private static void feed(String program, InputStream body, OutputStream stdin) {
+        Thread.ofVirtual().name("cgi-stdin").start(() -> {
+            try (body; stdin) {
+                body.transferTo(stdin);
+            } catch (IOException e) {
+                Log.debug(program + " didn't read all of its input");      // programs are free to stop reading early
+            }
+        });
+    }
+
     private static String validateCookie(String potentialCookie) {
         // Validate the cookie, if it's invalid, return a blank string
         String decodedDateTime = "";
@@ -299,220 +557,225 @@ public class HTTP1Server {
     *--------- Method Handler Implementations --------------
     */
 
+    // The original handler contract, the whole response built in one array from the request's lines
     static interface RequestHandler {
         abstract byte[] handler(String[] request);
     }
 
-    private static byte[] GET(String[] request) { 
+    // Puts a handler that builds the whole response into the handler table next to the ones that describe it to a sink
+    static HttpHandler buffered(RequestHandler handler) {
+        return (request, response) -> response.send(Response.of(handler.handler(request.getLines())));
+    }
 
-        String[] fields = request[0].split(Character.toString(32));
-        String resource = fields[1];
+    private static void GET(HttpRequest request, ResponseSink response) { 
 
-        if (resource.equals("/")) resource = "index.html"; 
+        String resource = request.getTarget();
 
-        String response = SUPPORTED_VERSION + " "+ StatusCode._200.toString() + CRLF;
-        
-        SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy kk:mm:ss z");
-        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        if (resource.equals("/")) resource = "index.html"; 
 
         try {
 
-            String cwd = new java.io.File(".").getCanonicalPath();
-            File file = new File(cwd + "/"+ resource);
-
-            String cookieValue = "";
-
-            // If the request has headers, we need to check if it has the If-Modified-Since header
-            if (request.length > 1){
-                int x = 0;
-                for(x=0;x<request.length;x++){
-                    if (request[x].contains("If-Modified-Since:")) {
-                        // Get the date substring from the header
-                        String ifModifiedString = request[x].substring(request[x].indexOf(" ") + 1);
-                        try {
-                            // If the if-modified-since date is of an invalid format, a ParseException will be thrown, so we can ignore the if-modified-date
-                            Date ifModifiedDate = sdf.parse(ifModifiedString);
-                            Date lastModifiedDate = new Date(file.lastModified());
-                            // Compare it against file's last modified date, if the file is older than the ifModifiedDate, then we return status 304 Not Modified, with the expiration date 
-                            if (lastModifiedDate.compareTo(ifModifiedDate) < 0)
-                                response = SUPPORTED_VERSION + " "  + StatusCode._304.toString() + CRLF +  "Expires: Tue, 1 Jan 2021 1:00:00 GMT" + CRLF;
-                        } catch(ParseException ex) {
-                            // malformed if-modified-since, ignore it
-                        }
-                    } else if (request[x].contains("Cookie:")) {
-                        cookieValue = request[x].substring(request[x].indexOf(" ") + 1);
-                        cookieValue = validateCookie(cookieValue); 
-                    }
-                }
-            }
+            File file = new File(DOCUMENT_ROOT + "/"+ resource);
+            FileCache.Entry cached = FileCache.lookup(file);
+            long lastModified = cached != null ? cached.lastModified : file.lastModified();
+
+            // The conditional and negotiation headers
+            String range = request.getHeader("Range");
+            String ifRange = request.getHeader("If-Range");
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            String ifModifiedSince = request.getHeader("If-Modified-Since");
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            String ifMatch = request.getHeader("If-Match");
+            String cookie = request.getHeader("Cookie");
+            String cookieValue = cookie != null ? validateCookie(cookie) : "";
 
 		
-            byte[] payload = null;
 	    if (!cookieValue.isBlank() && resource.equals("index.html")) {
-            	payload = getEditedIndex(cookieValue);
-            	response += getHeaders(payload.length, getMimeType("index.html"), null);
-	    } else {
-            	payload = getFileContent(file);
-            	response += getHeaders(file);
+            	byte[] payload = getEditedIndex(cookieValue);
+            	if (getRange(response, range, ifRange, getMimeType("index.html"), -1, payload.length, payload, null, null)) return;
+            	getEntityHeaders(response.status(StatusCode._200), payload.length, getMimeType("index.html"), -1, null, null).generalHeaders();
+            	response.write(payload);
+            	return;
 	    }
-	    
 
-            response +=  CRLF + CRLF;
-            byte[] response_bytes = response.getBytes();
-            byte[] message = new byte[response_bytes.length + payload.length];
+            // Ranges are always served from the identity body
+            String mimeType = getMimeType(file.getName());
+            String encoding = range == null && CompressionCache.isCompressible(mimeType) ? CompressionCache.negotiate(acceptEncoding) : null;
+
+            // Validators only need the file's metadata, so a revalidation is answered before any of its content is read
+            String etag = null;
+            if (cached != null) etag = Validators.etag(file.getPath(), lastModified, cached.content.length);
+            else if (file.isFile()) etag = Validators.etag(file.getPath(), lastModified, file.length());
+            if (etag != null) {
+                if (getConditional(response, etag, encoding, mimeType, lastModified, ifMatch, ifNoneMatch, ifModifiedSince)) return;
+            } else if (ifMatch != null && !file.isDirectory()) {
+                response.sendStatus(StatusCode._412).generalHeaders();       // nothing there to match
+                return;
+            }
 
-            // combine payload and response
-            System.arraycopy(response_bytes, 0, message, 0, response_bytes.length);
-            System.arraycopy(payload, 0, message, response_bytes.length, payload.length);
-	    
-        
-            return message;
+            if (cached != null) {
+                if (encoding != null && getCompressed(response, file, cached.content, encoding, mimeType, lastModified, etag)) return;
+                if (getRange(response, range, ifRange, mimeType, lastModified, cached.content.length, cached.content, null, etag)) return;
+                response.status(StatusCode._200).write(cached.headers).header(HeaderWriter.ETAG, etag).generalHeaders();
+                response.write(cached.content);
+                return;
+            }
+
+            // Small files are read whole and offered to the cache, the generation is taken first so an edit during the read keeps the stale copy out
+            if (FileCache.fits(file.length())) {
+                long generation = FileCache.generation();
+                lastModified = file.lastModified();
+                ServerEvents.FileRead read = ServerEvents.fileRead();
+                byte[] payload = getFileContent(file);
+                ServerEvents.commit(read, request.getConnection(), request.getMethod(), resource, 0, payload.length);
+                etag = Validators.etag(file.getPath(), lastModified, payload.length);      // the file may have changed since it was checked
+                FileCache.Entry entry = new FileCache.Entry(payload, getEntityHeaders(HeaderWriter.begin(), payload.length, mimeType, lastModified, null, null).toBytes(), lastModified);
+                FileCache.insert(file, generation, entry);
+                if (encoding != null && getCompressed(response, file, payload, encoding, mimeType, lastModified, etag)) return;
+                if (getRange(response, range, ifRange, mimeType, lastModified, payload.length, payload, null, etag)) return;
+                response.status(StatusCode._200).write(entry.headers).header(HeaderWriter.ETAG, etag).generalHeaders();
+                response.write(payload);
+                return;
+            }
+
+            // The file is opened before the headers are built so its length is the one that gets sent, its bytes are only read by the connection as they go out
+            if (file.isDirectory()) throw new FileNotFoundException();
+            if (encoding != null && getCompressed(response, file, null, encoding, mimeType, lastModified, etag)) return;
+            FileChannel content = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long length = content.size();
+            etag = Validators.etag(file.getPath(), lastModified, length);
+            if (getRange(response, range, ifRange, mimeType, lastModified, length, null, content, etag)) return;
+            getEntityHeaders(response.status(StatusCode._200), length, mimeType, lastModified, null, etag).generalHeaders();
+            response.transfer(content, 0, length);
 
         }catch (AccessDeniedException e) {
-            response = SUPPORTED_VERSION + " "  + StatusCode._403.toString();
-        }catch (FileNotFoundException e) {
-            response = SUPPORTED_VERSION + " "  + StatusCode._404.toString();
+            response.sendStatus(StatusCode._403);
+        }catch (FileNotFoundException | NoSuchFileException e) {
+            response.sendStatus(StatusCode._404);
         }catch (IOException e){
-            response = SUPPORTED_VERSION + " "  + StatusCode._500;   
-            e.printStackTrace();             
+            Log.error("[Error] failed to read " + resource, e);
+            response.sendStatus(StatusCode._500);
         }
-
-        return response.getBytes();
     
     }
 
-    private static byte[] POST(String[] request) {
+    private static void POST(HttpRequest request, ResponseSink response) {
 
         // Parsing the headers
-        int content_length = 0;
-        String from = null;
-        String userAgent = null;
-        boolean contains_content_length = false;
-        boolean contains_content_type = false;
-        if (request.length > 1) {
-            for (int i = 0; i < request.length; i++) {
-                
-                if (request[i].contains("Content-Type: ")) {
-
-                    contains_content_type = true;
-                    String content_type = request[i].substring(request[i].indexOf(" ") + 1).strip();
-
-                    if (!content_type.equals("application/x-www-form-urlencoded"))  {
-                        String response = SUPPORTED_VERSION + " "  + StatusCode._500;
-                        return response.getBytes();
-                    }
-
-                } else if (request[i].contains("Content-Length:")) {
-                
-                    contains_content_length = true;
-                    String content_length_value = request[i].substring(request[i].indexOf(" ") + 1).strip();
-
-                    try {
-                        content_length = Integer.parseInt(content_length_value);
-                    } catch (NumberFormatException e) {
-                        String response = SUPPORTED_VERSION + " "  + StatusCode._411;
-                        return response.getBytes();
-                    }
-                
-                } else if (request[i].contains("From:")) {
-                    from = request[i].substring(request[i].indexOf(" ") + 1).strip();
-                } else if (request[i].contains("User-Agent:")) {
-                    userAgent = request[i].substring(request[i].indexOf(" ") + 1).strip();
-                }
+        String content_type = request.getHeader("Content-Type");
+        String from = request.getHeader("From");
+        String userAgent = request.getHeader("User-Agent");
 
-            }
+        if (content_type != null && !content_type.equals("application/x-www-form-urlencoded")) {
+            response.sendStatus(StatusCode._500);
+            return;
         }
 
-        if (!contains_content_length) {
-            String response = SUPPORTED_VERSION + " "  + StatusCode._411;
-            return response.getBytes();
+        // The length the body was framed by rather than the header parsed again, so the program is told exactly what it is piped
+        long content_length = request.getContentLength();
+        if (content_length < 0) {
+            response.sendStatus(StatusCode._411);
+            return;
         }
 
-        if (!contains_content_type)  {  
-            String response = SUPPORTED_VERSION + " "  + StatusCode._500;
-            return response.getBytes();
+        if (content_type == null)  {  
+            response.sendStatus(StatusCode._500);
+            return;
         }
 
-        // three firs fields of the request, "HTTP/1.0 executable POST"
-        String[] fields = request[0].split(" ");
-        String executable = fields[1];        
-
-        // if the executable is invalid, it will return the byte[] error response
-        byte[] response;
-        if ((response = checkExecutable(executable)) != null) return response;        
+        String executable = request.getTarget();        
 
-        // Finds the beginning of the entity body
-        int entity_body_start = 0;
-        for (int i = 0; i < request.length; i++) {
-            if (request[i].isBlank()) {
-                entity_body_start = i + 1;
-                break;
-            }
+        // if the executable is invalid, it will return the error status
+        StatusCode invalid;
+        if ((invalid = checkExecutable(executable)) != null) {
+            response.sendStatus(invalid);
+            return;
         }
 
-        // reads content_length bytes
-        int bytes_read = 0;
-        int lines_read = 0;
-        String encoded_body = "";
-        // while (bytes_read < content_length) {
-        while (!request[entity_body_start + lines_read].isBlank()) {
-            
-            if(lines_read != 0) encoded_body += "\n";
-            encoded_body += request[entity_body_start + lines_read];
-            
-            bytes_read = encoded_body.length();
-            lines_read += 1;
-
-            if (entity_body_start + lines_read == request.length) {
-                // end of request, nothing else to read
-                break;
-            }
+        // The body is decoded as it is piped to the program, straight from memory or its spool file, so its size never matters here
+        RequestBody body = request.getBody();
+        InputStream input = new FormDecoder(body != null ? body.openStream() : InputStream.nullInputStream(), ServerConfig.CGI_PERCENT_DECODE);
 
+        // Programs with persistent workers get the request over the worker protocol, any other program, or one whose workers aren't ready, is started for it
+        Map<String, String> environment;
+        try {
+            environment = cgiEnvironment(executable, content_length, from, userAgent);
+        } catch (UnknownHostException e) {
+            Log.error("[Error] failed to resolve the server name", e);
+            EventLoop.closeQuietly(input);
+            response.sendStatus(StatusCode._500);
+            return;
+        }
+        Process process = null;
+        long started = System.nanoTime();
+        InputStream output = CgiWorkerPool.submit(executable, environment, input);
+        if (output == null) {
+            ServerEvents.CgiSpawn spawn = ServerEvents.cgiSpawn();
+            process = execute(executable, environment, input);
+            ServerEvents.commit(spawn, request.getConnection(), request.getMethod(), executable, 0, content_length);
+            if (process == null) {
+                EventLoop.closeQuietly(input);
+                response.sendStatus(StatusCode._500);
+                return;
+            }
+            output = process.getInputStream();
         }
 
-        // encoded_body = encoded_body.substring(0, content_length);
-        if (content_length != bytes_read) System.out.println("Warning: payload size did not match content length header");
-        String decoded_body = decode(encoded_body);
+        // The output is streamed to the client as the program writes it, only its first read is waited for so a program that prints nothing still gets a 204
+        // HTTP/1.1 clients get it in chunks and the connection can stay open, for HTTP/1.0 the body ends when the connection closes
+        byte[] first = new byte[ServerConfig.STREAM_BUFFER_SIZE];
+        int readin;
+        try {
+            readin = output.read(first);
+        } catch (IOException e) {
+            Log.error("[Error] failed to read the output of " + executable, e);
+            if (process != null) process.destroy();
+            EventLoop.closeQuietly(output);
+            response.sendStatus(StatusCode._500);
+            return;
+        }
 
-        String output = execute(executable, content_length, decoded_body, from, userAgent);
-        if (output == null) return (SUPPORTED_VERSION + " "  + StatusCode._500).getBytes();
+        if (readin == -1) {
+            EventLoop.closeQuietly(output);
+            Metrics.CGI_DURATION.record(System.nanoTime() - started);
+            response.status(StatusCode._204)
+                    .header(HeaderWriter.CONTENT_LENGTH, 0)
+                    .header(HeaderWriter.CONTENT_TYPE, "text/html")
+                    .write(HeaderWriter.ALLOW)
+                    .write(HeaderWriter.EXPIRES)
+                    .write(HeaderWriter.CONTENT_ENCODING);
+            return;
+        }
 
-        String response_code = output.length() == 0 ? StatusCode._204.toString() : StatusCode._200.toString(); 
-        
-        response = (SUPPORTED_VERSION + " "  + response_code + CRLF + 
-                                "Content-Length: " + output.length() + CRLF + 
-                                "Content-Type: text/html" + CRLF +
-                                "Allow: GET, POST, HEAD" + CRLF +
-                                "Expires: Tue, 1 Jan 2021 1:00:00 GMT" + CRLF +
-                                "Content-Encoding: identity" + CRLF + CRLF +
-                                output + CRLF
-                                ).getBytes();     
-        
-        return response;
+        boolean chunked = request.isHttp11();
+        HeaderWriter headers = response.status(StatusCode._200);
+        if (chunked) headers.write(HeaderWriter.TRANSFER_ENCODING_CHUNKED);
+        headers.header(HeaderWriter.CONTENT_TYPE, "text/html")
+                .write(HeaderWriter.ALLOW)
+                .write(HeaderWriter.EXPIRES)
+                .write(HeaderWriter.CONTENT_ENCODING);
+        response.stream(new BodyStream(output, process, Arrays.copyOf(first, readin), chunked, started));
     }
 
-    private static byte[] HEAD(String[] request) {
+    private static void HEAD(HttpRequest request, ResponseSink response) {
 
-        String[] fields = request[0].split(" ");
-        String resource = fields[1];        
-        String response = SUPPORTED_VERSION + " "  + StatusCode._200.toString() + CRLF;
+        String resource = request.getTarget();        
 
         try{
         
-            String cwd = new java.io.File(".").getCanonicalPath();
-            File file = new File(cwd + "/"+ resource);
-            response += getHeaders(file);
+            File file = new File(DOCUMENT_ROOT + "/"+ resource);
+            FileCache.Entry cached = FileCache.lookup(file);
+            if (cached != null) {
+                String etag = Validators.etag(file.getPath(), cached.lastModified, cached.content.length);
+                response.status(StatusCode._200).write(cached.headers).header(HeaderWriter.ETAG, etag).generalHeaders();
+            }
+            else getHeaders(response.status(StatusCode._200), file).generalHeaders();
 
         }catch (AccessDeniedException e) {
-            response = SUPPORTED_VERSION + " "  + StatusCode._403.toString();
+            response.sendStatus(StatusCode._403);
         }catch (FileNotFoundException e) {
-            response = SUPPORTED_VERSION + " "  + StatusCode._404.toString();
-        }catch (IOException e){
-            response = SUPPORTED_VERSION + " "  + StatusCode._500;    
-            e.printStackTrace();            
+            response.sendStatus(StatusCode._404);
         }
-
-        return response.getBytes();
        
     }
     
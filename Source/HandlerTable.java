@@ -0,0 +1,52 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The handler for each request method, looked up by comparing the method's bytes where the parser found them, so dispatch allocates nothing
+// There are only a handful of methods, a scan over them is cheaper than hashing a String made for the lookup
+// Each handler also names the stage it runs on, in every server mode
+// Filled in before the server starts and only read after that
+public class HandlerTable {
+
+    private byte[][] methods = new byte[0][];
+    private HttpHandler[] handlers = new HttpHandler[0];
+    private Stage[] stages = new Stage[0];
+
+    public HandlerTable put(String method, HttpHandler handler) {
+        return put(method, handler, Stage.FILE);
+    }
+
+    public HandlerTable put(String method, HttpHandler handler, Stage stage) {
+        byte[] name = method.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < methods.length; i++) {
+            if (Arrays.equals(methods[i], name)) {
+                handlers[i] = handler;
+                stages[i] = stage;
+                return this;
+            }
+        }
+        methods = Arrays.copyOf(methods, methods.length + 1);
+        handlers = Arrays.copyOf(handlers, handlers.length + 1);
+        stages = Arrays.copyOf(stages, stages.length + 1);
+        methods[methods.length - 1] = name;
+        handlers[handlers.length - 1] = handler;
+        stages[stages.length - 1] = stage;
+        return this;
+    }
+
+    // The handler for the method of the request the parser holds, null for a method the server doesn't know
+    public HttpHandler find(RequestParser parser) {
+        for (int i = 0; i < methods.length; i++) {
+            if (parser.methodEquals(methods[i])) return handlers[i];
+        }
+        return null;
+    }
+
+    // The stage a handler from this table runs on, a request without one is only answered with an error and that is left to the file stage
+    public Stage stageOf(HttpHandler handler) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == handler) return stages[i];
+        }
+        return Stage.FILE;
+    }
+
+}
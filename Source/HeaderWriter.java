@@ -0,0 +1,129 @@
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+// Renders a status line and headers straight into a reusable per thread buffer, only the finished block is copied out
+// Headers that never change are encoded once, and the ones that only change with the clock are rendered at most once a second and shared by every thread
+// A thread has one writer, so a block has to be finished before the next one is begun
+public final class HeaderWriter {
+
+    static final byte[] CONTENT_TYPE = "Content-Type: ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] LAST_MODIFIED = "Last-Modified: ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] ETAG = "ETag: ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CONTENT_RANGE = "Content-Range: ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] ACCEPT_RANGES = ("Accept-Ranges: bytes" + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII);
+    static final byte[] EXPIRES = ("Expires: Tue, 1 Jan 2021 1:00:00 GMT" + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII);
+    static final byte[] ALLOW = ("Allow: GET, POST, HEAD" + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CONTENT_ENCODING = ("Content-Encoding: identity" + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CONTENT_ENCODING_NAME = "Content-Encoding: ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] TRANSFER_ENCODING_CHUNKED = ("Transfer-Encoding: chunked" + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII);
+    static final byte[] VARY = ("Vary: Accept-Encoding" + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = HTTP1Server.CRLF.getBytes(StandardCharsets.US_ASCII);
+
+    private static final DateTimeFormatter COOKIE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final ThreadLocal<HeaderWriter> writers = ThreadLocal.withInitial(HeaderWriter::new);
+
+    // The headers sent with every file response that depend on the current second, replaced as a whole so readers never need a lock
+    private static final class Second {
+        final long epochSecond;
+        final byte[] headers;
+
+        Second(long millis) {
+            this.epochSecond = millis / 1000;
+            String cookieTime = URLEncoder.encode(LocalDateTime.now().format(COOKIE_TIME), StandardCharsets.UTF_8);
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            headers.writeBytes(("Date: " + HttpDate.format(millis) + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII));
+            headers.writeBytes(EXPIRES);
+            headers.writeBytes(ALLOW);
+            headers.writeBytes(("Set-Cookie: lasttime=" + cookieTime + HTTP1Server.CRLF).getBytes(StandardCharsets.US_ASCII));
+            this.headers = headers.toByteArray();
+        }
+    }
+
+    private static volatile Second second = new Second(System.currentTimeMillis());
+
+    private byte[] buffer = new byte[512];
+    private int length;
+
+    private HeaderWriter() {}
+
+    // Starts a block without a status line, for header fragments that are kept and joined to a full block later
+    public static HeaderWriter begin() {
+        HeaderWriter writer = writers.get();
+        writer.length = 0;
+        return writer;
+    }
+
+    public static HeaderWriter begin(StatusCode status) {
+        return begin().write(status.getStatusLine());
+    }
+
+    // A writer of its own rather than the thread's, for a block built up while other code renders headers on the same thread
+    static HeaderWriter detached() {
+        return new HeaderWriter();
+    }
+
+    HeaderWriter reset() {
+        length = 0;
+        return this;
+    }
+
+    public HeaderWriter write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    // Writes a header whose name is pre-encoded with its colon and space, the value is expected to be ASCII
+    public HeaderWriter header(byte[] name, String value) {
+        write(name);
+        ensure(value.length() + 2);
+        for (int i = 0; i < value.length(); i++) buffer[length++] = (byte) value.charAt(i);
+        return write(CRLF);
+    }
+
+    public HeaderWriter header(byte[] name, long value) {
+        write(name);
+        ensure(20 + 2);
+        if (value == 0) buffer[length++] = '0';
+        int start = length;
+        for (long rest = value; rest > 0; rest /= 10) buffer[length++] = (byte) ('0' + rest % 10);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+        return write(CRLF);
+    }
+
+    // Date, Expires, Allow and the lasttime cookie
+    public HeaderWriter generalHeaders() {
+        long now = System.currentTimeMillis();
+        Second current = second;
+        if (current.epochSecond != now / 1000) {
+            current = new Second(now);      // threads racing over a new second each render the same bytes, whichever is stored last wins
+            second = current;
+        }
+        return write(current.headers);
+    }
+
+    // Copies out the block as it stands, for fragments
+    public byte[] toBytes() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    // Ends the block with the blank line that separates headers from the body and copies it out
+    public byte[] finish() {
+        return write(CRLF).toBytes();
+    }
+
+    private void ensure(int needed) {
+        if (length + needed > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + needed));
+    }
+
+}
@@ -0,0 +1,29 @@
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+// Formats dates the way HTTP headers carry them, DateTimeFormatter is immutable so unlike SimpleDateFormat one instance serves every thread
+public final class HttpDate {
+
+    private static final DateTimeFormatter PARSE = DateTimeFormatter.ofPattern("d MMM yyyy H:mm:ss 'GMT'", Locale.US);
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    public static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    // Parses the date of a conditional header, returning -1 if it can't be read
+    // The day name is skipped rather than checked, and single digit days and hours are accepted as clients and this server's own Expires header use them
+    public static long parse(String date) {
+        int comma = date.indexOf(',');
+        try {
+            return LocalDateTime.parse(date.substring(comma + 1).strip(), PARSE).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private HttpDate() {}
+
+}
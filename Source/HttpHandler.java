@@ -0,0 +1,8 @@
+// Answers a request by describing its response to a sink, status and headers first and then a body written, transferred from a file or streamed
+// Nothing has to be built in one array, so a handler can hand over file regions and program output as they are and the connection sends them as it can
+// Handlers answer their own errors through the sink, an exception thrown out of one is a bug and drops the connection
+public interface HttpHandler {
+
+    void handle(HttpRequest request, ResponseSink response);
+
+}
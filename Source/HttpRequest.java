@@ -0,0 +1,77 @@
+import java.net.InetAddress;
+
+// A request as the handlers see it, the request line split into its three fields once it has been validated and the headers looked up by name
+// The lines are still there for handlers that scan them, each one as received with its line ending
+public class HttpRequest {
+
+    private final String[] lines;
+    private final String method;
+    private final String target;
+    private final String version;
+    private final long contentLength;
+    private final RequestBody body;
+    private final InetAddress address;
+    private final long connection;
+
+    HttpRequest(String[] lines, String method, String target, String version, long contentLength, RequestBody body, InetAddress address, long connection) {
+        this.lines = lines;
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.contentLength = contentLength;
+        this.body = body;
+        this.address = address;
+        this.connection = connection;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public boolean isHttp11() {
+        return version.equals("HTTP/1.1");
+    }
+
+    // Value of the first header with the given name, compared ignoring case and stripped of surrounding whitespace, or null if the request doesn't have one
+    public String getHeader(String name) {
+        for (int i = 1; i < lines.length && !lines[i].isBlank(); i++) {
+            String line = lines[i];
+            if (line.length() > name.length() && line.charAt(name.length()) == ':' && line.regionMatches(true, 0, name, 0, name.length())) {
+                return line.substring(name.length() + 1).strip();
+            }
+        }
+        return null;
+    }
+
+    public String[] getLines() {
+        return lines;
+    }
+
+    // The length the body was read by, the one Content-Length has to agree with for the request to get this far, -1 when the request had no Content-Length
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    // Null for a request without one, it can only be read until the handler returns unless a stream over it was opened
+    public RequestBody getBody() {
+        return body;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    // The id of the connection the request arrived on, unique for the server's run
+    public long getConnection() {
+        return connection;
+    }
+
+}
@@ -0,0 +1,33 @@
+// A request as read off a connection, its request line and headers ready to be split for the handlers and its body, null when it has none
+// The handler is picked from the method's bytes while the parser still has them, null when the method is unknown or the request never finished arriving
+public class IncomingRequest {
+
+    final long connection;
+    final String head;
+    final HttpHandler handler;
+    final long length;      // the Content-Length the request was framed by, -1 when it had none
+    final RequestBody body;
+    long ready = System.nanoTime();     // when the request was complete and could be handled, reset once a body still arriving is in
+    final ServerEvents.Queue queued = ServerEvents.queue();
+
+    public IncomingRequest(long connection, String head, HttpHandler handler, long length, RequestBody body) {
+        this.connection = connection;
+        this.head = head;
+        this.handler = handler;
+        this.length = length;
+        this.body = body;
+    }
+
+    // Marks the request, body included, as having arrived, ending the read that began with its first byte so the queue wait runs from now
+    void arrived(ServerEvents.Read read) {
+        ready = System.nanoTime();
+        if (queued != null) queued.begin();
+        ServerEvents.commit(read, connection, head, 0, head.length() + (body != null ? body.length() : 0));
+    }
+
+    // Releases the body of a request that won't be handled
+    void close() {
+        if (body != null) body.close();
+    }
+
+}
@@ -0,0 +1,40 @@
+package jmh;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Decoding form bodies of growing size, with and without percent-decoding, the comparison with the original decode() is in Benchmark/FormDecoderBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    private static final String ALPHABET = "abcdefghij=&%+!*'();:@$,/?#[] 0F";
+
+    @Param({ "1024", "102400" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean percent;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; i < size; i++) text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        body = text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public Object decode() throws Throwable {
+        return (Object) Server.DECODE.invokeExact((Object) body, percent);
+    }
+
+}
@@ -0,0 +1,54 @@
+package jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The per request work GET and HEAD do on a file outside the caches, its type from its name, its headers from its metadata and its content read whole
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileBenchmark {
+
+    @Param({ "1024", "65536", "1048576", "16777216" })
+    public int size;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("jmh-file", ".html");
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public Object getMimeType() throws Throwable {
+        return (Object) Server.GET_MIME_TYPE.invokeExact((Object) file.getName());
+    }
+
+    @Benchmark
+    public Object getHeaders() throws Throwable {
+        Object writer = (Object) Server.BEGIN_HEADERS.invokeExact();
+        writer = (Object) Server.GET_HEADERS.invokeExact(writer, (Object) file);
+        return (Object) Server.FINISH_HEADERS.invokeExact(writer);
+    }
+
+    @Benchmark
+    public Object getFileContent() throws Throwable {
+        return (Object) Server.GET_FILE_CONTENT.invokeExact((Object) file);
+    }
+
+}
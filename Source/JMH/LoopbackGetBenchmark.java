@@ -0,0 +1,125 @@
+package jmh;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A whole GET as a client sees it, over a persistent loopback connection to a server started in the benchmark's own JVM
+// The two smaller sizes are answered from the file cache, the largest is over its per file limit and sent from the file with transferTo
+// The server's allocations are in the same JVM, so -prof gc counts them along with the client's
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dserver.maxKeepAliveRequests=2147483647", "-Dserver.keepAliveTimeout=600000" })
+@State(Scope.Thread)
+public class LoopbackGetBenchmark {
+
+    @Param({ "blocking", "nio" })
+    public String mode;
+
+    @Param({ "1024", "524288", "4194304" })
+    public int size;
+
+    private File file;
+    private int port;
+    private byte[] request;
+    private Socket socket;
+    private OutputStream output;
+    private InputStream input;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    // Each trial runs in a fresh fork, so the server started here is the only one in its JVM
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = File.createTempFile("jmh-get", ".bin", new File("."));        // files are served from the working directory
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Files.write(file.toPath(), content);
+        request = ("GET /" + file.getName() + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread server = new Thread(() -> {
+            try {
+                Server.MAIN.invokeExact((Object) new String[] { port + "", mode });
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                connect();
+            } catch (IOException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        file.delete();
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        output = socket.getOutputStream();
+        input = new BufferedInputStream(socket.getInputStream(), buffer.length);
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        output.write(request);
+        output.flush();
+        long length = -1;
+        boolean close = false;
+        int lineLength;
+        while ((lineLength = readLine()) > 0) {
+            if (startsWith("content-length:", lineLength)) length = Long.parseLong(new String(buffer, 15, lineLength - 15, StandardCharsets.US_ASCII).strip());
+            else if (startsWith("connection: close", lineLength)) close = true;
+        }
+        if (lineLength == -1 || length < 0) throw new EOFException("incomplete response");
+        for (long remaining = length; remaining > 0; ) {
+            int readin = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (readin == -1) throw new EOFException("response body cut short");
+            remaining -= readin;
+        }
+        if (close) {
+            socket.close();
+            connect();
+        }
+        return length;
+    }
+
+    // Reads a header line into the buffer without its line ending, returning its length, 0 for the blank line ending the head and -1 at the end of the stream
+    private int readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) return -1;
+            if (b != '\r' && length < buffer.length) buffer[length++] = (byte) b;
+        }
+        return length;
+    }
+
+    private boolean startsWith(String lowerCase, int lineLength) {
+        if (lineLength < lowerCase.length()) return false;
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if (Character.toLowerCase(buffer[i]) != lowerCase.charAt(i)) return false;
+        }
+        return true;
+    }
+
+}
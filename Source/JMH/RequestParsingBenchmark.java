@@ -0,0 +1,66 @@
+package jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Reading a request's line and headers, the original String splitting ClientHandler.run did against RequestParser working on the received bytes
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+
+    private static final byte[] REQUEST = ("GET /images/logo.png HTTP/1.1\r\n" +
+                                           "Host: localhost:1234\r\n" +
+                                           "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0\r\n" +
+                                           "Accept: image/avif,image/webp,*/*\r\n" +
+                                           "Accept-Language: en-US,en;q=0.5\r\n" +
+                                           "Accept-Encoding: gzip, deflate, br\r\n" +
+                                           "Connection: keep-alive\r\n" +
+                                           "Cookie: lasttime=2021-01-01+01%3A00%3A00\r\n" +
+                                           "If-Modified-Since: Tue, 1 Jan 2021 1:00:00 GMT\r\n" +
+                                           "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] ACCEPT_ENCODING = "accept-encoding".getBytes(StandardCharsets.US_ASCII);
+
+    private Object parser;
+    private ByteBuffer view;
+
+    @Setup
+    public void setUp() throws Throwable {
+        parser = (Object) Server.NEW_PARSER.invokeExact();
+        view = ByteBuffer.wrap(REQUEST);
+    }
+
+    // The request turned into a String, split into lines, the request line split again and every line searched for Content-Length
+    @Benchmark
+    public int split() {
+        String[] request = new String(REQUEST).split("\n");
+        String[] fields = request[0].split(" ");
+        int length = 0;
+        for (int i = 0; i < request.length; i++) {
+            if (request[i].contains("Content-Length:")) length = Integer.parseInt(request[i].substring(request[i].indexOf(" ") + 1).strip());
+        }
+        return fields.length + fields[0].length() + length;
+    }
+
+    @Benchmark
+    public int parse() throws Throwable {
+        Server.RESET.invokeExact(parser);
+        Object result = (Object) Server.PARSE.invokeExact(parser, (Object) view);
+        return (int) Server.HEADER_END.invokeExact(parser);
+    }
+
+    // Parsing and then looking a header up, which is the only point a String is made
+    @Benchmark
+    public Object parseAndLookUp() throws Throwable {
+        Server.RESET.invokeExact(parser);
+        Object result = (Object) Server.PARSE.invokeExact(parser, (Object) view);
+        return (Object) Server.GET_HEADER.invokeExact(parser, (Object) ACCEPT_ENCODING);
+    }
+
+}
@@ -0,0 +1,68 @@
+package jmh;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+// The server's classes are in the default package, which code in a named package can't refer to, and JMH won't generate benchmarks for a class in the default package
+// So the benchmarks reach the server through method handles, their types erased to Object since the server's types can't be named here
+// Each handle is a static final, which the JIT treats as a constant and inlines the same as a direct call, instance methods take their receiver first
+final class Server {
+
+    static final MethodHandle MAIN = method("HTTP1Server", "main", String[].class);
+    static final MethodHandle GET_MIME_TYPE = method("HTTP1Server", "getMimeType", String.class);
+    static final MethodHandle GET_FILE_CONTENT = method("HTTP1Server", "getFileContent", File.class);
+    static final MethodHandle GET_HEADERS = method("HTTP1Server", "getHeaders", type("HeaderWriter"), File.class);
+    static final MethodHandle BEGIN_HEADERS = method("HeaderWriter", "begin");
+    static final MethodHandle FINISH_HEADERS = method("HeaderWriter", "finish");
+    static final MethodHandle DECODE = method("FormDecoder", "decode", byte[].class, boolean.class);
+    static final MethodHandle NEW_PARSER = constructor("RequestParser");
+    static final MethodHandle PARSE = method("RequestParser", "parse", ByteBuffer.class);
+    static final MethodHandle RESET = method("RequestParser", "reset");
+    static final MethodHandle HEADER_END = method("RequestParser", "getHeaderEnd");
+    static final MethodHandle GET_HEADER = method("RequestParser", "getHeader", byte[].class);
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("the server's classes have to be on the classpath, " + name + " isn't", e);
+        }
+    }
+
+    // Private methods included
+    private static MethodHandle method(String owner, String name, Class<?>... parameters) {
+        try {
+            var method = type(owner).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return erase(MethodHandles.lookup().unreflect(method));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no " + owner + "." + name + " to benchmark", e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner) {
+        try {
+            var constructor = type(owner).getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return erase(MethodHandles.lookup().unreflectConstructor(constructor));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no " + owner + " constructor to benchmark", e);
+        }
+    }
+
+    // Reference types become Object so callers can use invokeExact with the types they can name
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (!type.parameterType(i).isPrimitive()) type = type.changeParameterType(i, Object.class);
+        }
+        if (!type.returnType().isPrimitive()) type = type.changeReturnType(Object.class);
+        return handle.asType(type);
+    }
+
+    private Server() {}
+
+}
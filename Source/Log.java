@@ -0,0 +1,127 @@
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous, levelled logging, callers only put a message into a lock-free ring buffer and a background thread writes them out in batches
+// so no request thread ever waits on the stdout lock, messages below the configured level are never even built by callers that check isEnabled first
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("server.logLevel", "INFO"));
+    private static final boolean BLOCK_WHEN_FULL = System.getProperty("server.logFullPolicy", "drop").equalsIgnoreCase("block");
+    private static final int BATCH_SIZE = 256;
+
+    private static final RingBuffer<Entry> buffer = new RingBuffer<>(Integer.getInteger("server.logBuffer", 8192));
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile boolean writerWaiting = false;
+    private static final Thread writer = startWriter();
+
+    private static final class Entry {
+        final Level level;
+        final String message;
+
+        Entry(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private Log() {}
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= LEVEL.ordinal();
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    // Stack traces are rendered by the caller's thread since the throwable may change once it returns
+    public static void error(String message, Throwable throwable) {
+        if (!isEnabled(Level.ERROR)) return;
+        StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        log(Level.ERROR, message + System.lineSeparator() + trace.toString().stripTrailing());
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    // Drops the message when the buffer is full, or with the block policy waits for the writer to make room
+    public static void log(Level level, String message) {
+        if (!isEnabled(level)) return;
+        Entry entry = new Entry(level, message);
+        while (!buffer.offer(entry)) {
+            if (!BLOCK_WHEN_FULL) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+        if (writerWaiting) LockSupport.unpark(writer);
+    }
+
+    private static Thread startWriter() {
+        Thread thread = new Thread(Log::drain, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> { while (flush()); }, "log-flush"));      // write out whatever is still buffered when the server exits
+        return thread;
+    }
+
+    private static void drain() {
+        while (true) {
+            if (!flush()) {
+                writerWaiting = true;
+                if (buffer.isEmpty()) LockSupport.parkNanos(100_000_000);    // woken early by the next message
+                writerWaiting = false;
+            }
+        }
+    }
+
+    // Writes one batch to each stream with a single print call, errors and warnings go to stderr as before and everything else to stdout
+    // Returns whether anything was written, it is synchronized only so the shutdown hook and the writer never drain at the same time
+    private static synchronized boolean flush() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        int count = 0;
+        Entry entry;
+        while (count < BATCH_SIZE && (entry = buffer.poll()) != null) {
+            (entry.level.ordinal() <= Level.WARN.ordinal() ? err : out).append(entry.message).append(System.lineSeparator());
+            count++;
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) err.append("[Warning] log buffer full, dropped " + lost + " messages").append(System.lineSeparator());
+
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+        }
+        return count > 0 || lost > 0;
+    }
+
+    private static Level parseLevel(String level) {
+        try {
+            return Level.valueOf(level.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[Error] unknown log level " + level + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for the whole server, served from a reserved path in the Prometheus text format or as JSON
+// Everything is recorded into LongAdders, which spread concurrent increments over per thread cells, so recording never contends on the request path
+// and only a scrape pays for adding the cells up
+public final class Metrics {
+
+    private static final String[] METHODS = { "GET", "POST", "HEAD", "PUT", "DELETE", "LINK", "UNLINK" };     // any other method is counted as other
+    private static final StatusCode[] STATUSES = StatusCode.values();
+    private static final int[] STATUS_INDEX = new int[600];      // status number to its slot, the last slot for numbers outside the enum
+    static {
+        java.util.Arrays.fill(STATUS_INDEX, STATUSES.length);
+        for (int i = 0; i < STATUSES.length; i++) STATUS_INDEX[STATUSES[i].getNumber()] = i;
+    }
+
+    private static final LongAdder[] methods = adders(METHODS.length + 1);
+    private static final LongAdder[] statuses = adders(STATUSES.length + 1);
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder processSpawns = new LongAdder();
+    private static final LongAdder workerSpawns = new LongAdder();
+
+    // From a connection being accepted to a thread or event loop taking it up
+    static final Histogram ACCEPT = new Histogram("http_accept_seconds", "Time from accepting a connection to it being served");
+    // From a request, body included, having arrived to its handler starting
+    static final Histogram QUEUE_WAIT = new Histogram("http_queue_wait_seconds", "Time a complete request waited for its handler to start");
+    static final Histogram HANDLER = new Histogram("http_handler_seconds", "Time spent generating a response");
+    // From the first write of a batch of responses to its last byte being sent, a streamed body is written as its program produces it
+    static final Histogram WRITE = new Histogram("http_write_seconds", "Time spent writing responses to the client");
+    static final Histogram CGI_SPAWN = new Histogram("cgi_spawn_seconds", "Time taken to start a CGI process");
+    // From a request being handed to a program to the end of its output
+    static final Histogram CGI_DURATION = new Histogram("cgi_request_seconds", "Time a CGI program took to answer a request");
+
+    private static final Histogram[] HISTOGRAMS = { ACCEPT, QUEUE_WAIT, HANDLER, WRITE, CGI_SPAWN, CGI_DURATION };
+
+    private Metrics() {}
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    static void countMethod(String method) {
+        int i = 0;
+        while (i < METHODS.length && !METHODS[i].equals(method)) i++;
+        methods[i].increment();
+    }
+
+    // Counts a response by its status code, one the enum doesn't have counted as other
+    static void countStatus(int number) {
+        statuses[number >= 0 && number < STATUS_INDEX.length ? STATUS_INDEX[number] : STATUSES.length].increment();
+    }
+
+    static void countStatus(StatusCode status) {
+        statuses[status.ordinal()].increment();
+    }
+
+    static void bytesIn(long count) {
+        if (count > 0) bytesIn.add(count);
+    }
+
+    static void bytesOut(long count) {
+        if (count > 0) bytesOut.add(count);
+    }
+
+    static void connectionAccepted() {
+        accepted.increment();
+    }
+
+    static void connectionRejected() {
+        rejected.increment();
+    }
+
+    // A CGI program started for one request, or as a persistent worker that serves many
+    static void cgiSpawned(boolean worker, long nanos) {
+        (worker ? workerSpawns : processSpawns).increment();
+        CGI_SPAWN.record(nanos);
+    }
+
+    // Answers requests for the metrics path itself and hands any other to the given handler, so a scrape never touches the file system
+    // The Prometheus text format is the default, ?format=json or an Accept header asking for JSON gets the same numbers as a JSON object
+    static HttpHandler serving(String path, HttpHandler files) {
+        if (path.isEmpty()) return files;
+        return (request, response) -> {
+            String target = request.getTarget();
+            int query = target.indexOf('?');
+            if (!(query == -1 ? target : target.substring(0, query)).equals(path)) {
+                files.handle(request, response);
+                return;
+            }
+            String accept = request.getHeader("Accept");
+            boolean json = query != -1 && target.indexOf("format=json", query) != -1 || accept != null && accept.contains("application/json");
+            byte[] body = (json ? renderJson() : renderPrometheus()).getBytes(StandardCharsets.UTF_8);
+            response.status(StatusCode._200)
+                    .header(HeaderWriter.CONTENT_TYPE, json ? "application/json" : "text/plain; version=0.0.4; charset=utf-8")
+                    .header(HeaderWriter.CONTENT_LENGTH, body.length)
+                    .write(HeaderWriter.EXPIRES);
+            response.write(body);
+        };
+    }
+
+    static String renderPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        type(out, "http_requests_total", "counter", "Requests received by method");
+        for (int i = 0; i <= METHODS.length; i++) {
+            out.append("http_requests_total{method=\"").append(i < METHODS.length ? METHODS[i] : "other").append("\"} ").append(methods[i].sum()).append('\n');
+        }
+        type(out, "http_responses_total", "counter", "Responses sent by status");
+        for (int i = 0; i <= STATUSES.length; i++) {
+            out.append("http_responses_total{status=\"").append(i < STATUSES.length ? STATUSES[i].getNumber() + "" : "other").append("\"} ").append(statuses[i].sum()).append('\n');
+        }
+        type(out, "http_received_bytes_total", "counter", "Bytes read from clients").append("http_received_bytes_total ").append(bytesIn.sum()).append('\n');
+        type(out, "http_sent_bytes_total", "counter", "Bytes written to clients").append("http_sent_bytes_total ").append(bytesOut.sum()).append('\n');
+        type(out, "http_connections_active", "gauge", "Connections currently being served").append("http_connections_active ").append(HTTP1Server.getActiveCount()).append('\n');
+        type(out, "http_connections_accepted_total", "counter", "Connections accepted and served").append("http_connections_accepted_total ").append(accepted.sum()).append('\n');
+        type(out, "http_connections_rejected_total", "counter", "Connections turned away with a 503 at the connection limit").append("http_connections_rejected_total ").append(rejected.sum()).append('\n');
+        type(out, "cgi_spawns_total", "counter", "CGI processes started");
+        out.append("cgi_spawns_total{kind=\"request\"} ").append(processSpawns.sum()).append('\n');
+        out.append("cgi_spawns_total{kind=\"worker\"} ").append(workerSpawns.sum()).append('\n');
+        type(out, "file_cache_hits_total", "counter", "Static file cache hits").append("file_cache_hits_total ").append(FileCache.getHits()).append('\n');
+        type(out, "file_cache_misses_total", "counter", "Static file cache misses").append("file_cache_misses_total ").append(FileCache.getMisses()).append('\n');
+        type(out, "file_cache_evictions_total", "counter", "Entries evicted from the static file cache to make room").append("file_cache_evictions_total ").append(FileCache.getEvictions()).append('\n');
+        type(out, "file_cache_bytes", "gauge", "Bytes held by the static file cache").append("file_cache_bytes ").append(FileCache.getSize()).append('\n');
+        type(out, "compression_cache_hits_total", "counter", "Compressed variant cache hits").append("compression_cache_hits_total ").append(CompressionCache.getHits()).append('\n');
+        type(out, "compression_cache_misses_total", "counter", "Compressed variant cache misses").append("compression_cache_misses_total ").append(CompressionCache.getMisses()).append('\n');
+        for (Histogram histogram : HISTOGRAMS) histogram.renderPrometheus(out);
+
+        // Stages, io being the event loops that read, parse and write, their queue holds the responses and registrations handed back to them
+        type(out, "stage_threads", "gauge", "Threads a stage runs on");
+        out.append("stage_threads{stage=\"io\"} ").append(SelectorServer.getLoopCount()).append('\n');
+        for (Stage stage : Stage.ALL) out.append("stage_threads{stage=\"").append(stage.getName()).append("\"} ").append(stage.getThreads()).append('\n');
+        type(out, "stage_active_threads", "gauge", "Threads of a stage busy with a task");
+        for (Stage stage : Stage.ALL) out.append("stage_active_threads{stage=\"").append(stage.getName()).append("\"} ").append(stage.getActiveCount()).append('\n');
+        type(out, "stage_queue_depth", "gauge", "Tasks waiting in a stage's queue");
+        out.append("stage_queue_depth{stage=\"io\"} ").append(SelectorServer.getQueuedTasks()).append('\n');
+        for (Stage stage : Stage.ALL) out.append("stage_queue_depth{stage=\"").append(stage.getName()).append("\"} ").append(stage.getQueueDepth()).append('\n');
+        type(out, "stage_queue_limit", "gauge", "Tasks a stage's queue holds before its overload policy applies");
+        for (Stage stage : Stage.ALL) out.append("stage_queue_limit{stage=\"").append(stage.getName()).append("\"} ").append(stage.getQueueLimit()).append('\n');
+        type(out, "stage_completed_total", "counter", "Tasks a stage finished");
+        for (Stage stage : Stage.ALL) out.append("stage_completed_total{stage=\"").append(stage.getName()).append("\"} ").append(stage.getCompleted()).append('\n');
+        type(out, "stage_rejected_total", "counter", "Tasks a stage turned away with a 503 under its overload policy");
+        for (Stage stage : Stage.ALL) out.append("stage_rejected_total{stage=\"").append(stage.getName()).append("\"} ").append(stage.getRejected()).append('\n');
+        type(out, "stage_queue_wait_seconds", "histogram", "Time tasks waited in a stage's queue");
+        for (Stage stage : Stage.ALL) stage.waiting.renderSeries(out);
+        type(out, "stage_service_seconds", "histogram", "Time a stage's threads spent on a task");
+        for (Stage stage : Stage.ALL) stage.serving.renderSeries(out);
+        return out.toString();
+    }
+
+    private static StringBuilder type(StringBuilder out, String name, String type, String help) {
+        return out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static String renderJson() {
+        StringBuilder out = new StringBuilder(2048).append("{\"requests\":{");
+        for (int i = 0; i <= METHODS.length; i++) {
+            if (i > 0) out.append(',');
+            out.append('"').append(i < METHODS.length ? METHODS[i] : "other").append("\":").append(methods[i].sum());
+        }
+        out.append("},\"responses\":{");
+        for (int i = 0; i <= STATUSES.length; i++) {
+            if (i > 0) out.append(',');
+            out.append('"').append(i < STATUSES.length ? STATUSES[i].getNumber() + "" : "other").append("\":").append(statuses[i].sum());
+        }
+        out.append("},\"bytes\":{\"in\":").append(bytesIn.sum()).append(",\"out\":").append(bytesOut.sum())
+                .append("},\"connections\":{\"active\":").append(HTTP1Server.getActiveCount()).append(",\"accepted\":").append(accepted.sum()).append(",\"rejected\":").append(rejected.sum())
+                .append("},\"cgi\":{\"spawns\":{\"request\":").append(processSpawns.sum()).append(",\"worker\":").append(workerSpawns.sum())
+                .append("}},\"caches\":{\"file\":{\"hits\":").append(FileCache.getHits()).append(",\"misses\":").append(FileCache.getMisses()).append(",\"evictions\":").append(FileCache.getEvictions()).append(",\"bytes\":").append(FileCache.getSize())
+                .append("},\"compression\":{\"hits\":").append(CompressionCache.getHits()).append(",\"misses\":").append(CompressionCache.getMisses())
+                .append("}},\"latency\":{");
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            if (i > 0) out.append(',');
+            HISTOGRAMS[i].renderJson(out, HISTOGRAMS[i].name);
+        }
+        out.append("},\"stages\":{\"io\":{\"threads\":").append(SelectorServer.getLoopCount()).append(",\"queued\":").append(SelectorServer.getQueuedTasks()).append('}');
+        for (Stage stage : Stage.ALL) {
+            out.append(",\"").append(stage.getName()).append("\":{\"threads\":").append(stage.getThreads()).append(",\"active\":").append(stage.getActiveCount())
+                    .append(",\"queued\":").append(stage.getQueueDepth()).append(",\"limit\":").append(stage.getQueueLimit())
+                    .append(",\"overload\":\"").append(stage.getOverload().name().toLowerCase().replace('_', '-'))
+                    .append("\",\"completed\":").append(stage.getCompleted()).append(",\"rejected\":").append(stage.getRejected()).append(',');
+            stage.waiting.renderJson(out, "wait");
+            out.append(',');
+            stage.serving.renderJson(out, "service");
+            out.append('}');
+        }
+        return out.append("}}\n").toString();
+    }
+
+    // A latency histogram over fixed buckets, recording is a short scan of the bounds and an increment of one bucket's adder
+    // Buckets hold their own counts and are only made cumulative when rendered, quantiles in the JSON are interpolated within a bucket as Prometheus does
+    static final class Histogram {
+
+        private static final double[] BOUNDS = { 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+        private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+        private static final String[] LABELS = new String[BOUNDS.length + 1];
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUND_NANOS[i] = Math.round(BOUNDS[i] * 1e9);
+                LABELS[i] = java.math.BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString();
+            }
+            LABELS[BOUNDS.length] = "+Inf";
+        }
+
+        private final String name;
+        private final String help;
+        private final String label;         // prepended to le in each series, empty for a histogram that is the only one of its name
+        private final LongAdder[] buckets = adders(BOUNDS.length + 1);      // the last one is +Inf
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help) {
+            this(name, help, "");
+        }
+
+        Histogram(String name, String help, String label) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            int i = 0;
+            while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i]) i++;
+            buckets[i].increment();
+            sum.add(nanos);
+        }
+
+        // Bucket counts read once so a scrape renders a consistent set even while requests keep recording
+        private long[] snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) counts[i] = buckets[i].sum();
+            return counts;
+        }
+
+        private void renderPrometheus(StringBuilder out) {
+            type(out, name, "histogram", help);
+            renderSeries(out);
+        }
+
+        // The buckets, sum and count without the type, for histograms that share a name and differ by label
+        private void renderSeries(StringBuilder out) {
+            long[] counts = snapshot();
+            String labels = label.isEmpty() ? "" : "{" + label + "}";
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                out.append(name).append("_bucket{").append(label.isEmpty() ? "" : label + ",").append("le=\"").append(LABELS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum").append(labels).append(' ').append(sum.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+
+        private void renderJson(StringBuilder out, String key) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long count : counts) total += count;
+            out.append('"').append(key).append("\":{\"count\":").append(total).append(",\"sum\":").append(sum.sum() / 1e9)
+                    .append(",\"p50\":").append(quantile(counts, total, 0.5))
+                    .append(",\"p90\":").append(quantile(counts, total, 0.9))
+                    .append(",\"p99\":").append(quantile(counts, total, 0.99)).append('}');
+        }
+
+        // In seconds, a quantile falling in the +Inf bucket is reported as the highest bound since nothing is known past it
+        private static double quantile(long[] counts, long total, double q) {
+            if (total == 0) return 0;
+            double rank = q * total;
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                if (seen + counts[i] >= rank && counts[i] > 0) {
+                    double lower = i == 0 ? 0 : BOUNDS[i - 1];
+                    return lower + (BOUNDS[i] - lower) * (rank - seen) / counts[i];
+                }
+                seen += counts[i];
+            }
+            return BOUNDS[BOUNDS.length - 1];
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+// Per connection state for the non-blocking server mode, only ever touched from the owning event loop's thread
+public class NioConnection {
+
+    private enum State { READING, PROCESSING, WRITING, LINGERING, CLOSED }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop loop;
+    private final InetAddress address;
+    private final long id;
+
+    private State state = State.READING;
+    private byte[] requestBytes = new byte[1024];
+    private ByteBuffer requestView = ByteBuffer.wrap(requestBytes);
+    private int requestLength = 0;
+    private final RequestParser parser = new RequestParser();
+    private IncomingRequest receiving;     // request whose body is still arriving, read straight into the body rather than requestBytes
+    private ServerEvents.Read reading;     // the request being read, begun with its first byte
+    private int handled = 0;    // requests dispatched on this connection so far
+    private boolean keepAlive = false;  // whether the connection stays open once the pending write finishes
+    private ResponseBatch pendingWrite;
+    private TimerWheel.Timeout deadline;
+    private boolean counted = true;     // whether this connection still holds a place in the active count
+
+    private NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop, long id) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.id = id;
+        this.address = channel.socket().getInetAddress();
+    }
+
+    // The state for a channel just registered with the loop's selector, attached to its key and with the idle deadline running
+    public static NioConnection open(SocketChannel channel, SelectionKey key, EventLoop loop, long id) {
+        NioConnection connection = new NioConnection(channel, key, loop, id);
+        key.attach(connection);
+        connection.resetDeadline(ServerConfig.IDLE_TIMEOUT);
+        return connection;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    // Replaces the pending deadline, when it expires while a request is still being read the client is sent a 408 and an idle persistent connection is just closed
+    private void resetDeadline(long millis) {
+        if (deadline != null) deadline.cancel();
+        deadline = loop.getTimers().schedule(millis, () -> {
+            if (state == State.LINGERING) close();
+            if (state != State.READING) return;
+            if (handled > 0 && requestLength == 0 && receiving == null) {
+                close();
+                return;
+            }
+            Log.info("Connection from " + address + " denied: Client timed out");
+            if (receiving != null) {
+                receiving.close();
+                receiving = null;
+            }
+            send(new ResponseBatch(Response.of(ClientHandler.withConnectionHeader(HTTP1Server.statusResponse(StatusCode._408), false))), false);
+        });
+    }
+
+    void onReadable(ByteBuffer buffer) {
+        if (state == State.LINGERING) {
+            drain(buffer);
+            return;
+        }
+        if (state != State.READING) return;
+        try {
+            buffer.clear();
+            int readin = channel.read(buffer);
+            Metrics.bytesIn(readin);
+            if (readin == -1) {        // client finished sending, validate whatever did arrive of a last request
+                if (receiving != null) {       // it stopped partway through a body
+                    receiving.close();
+                    receiving = null;
+                    deadline.cancel();
+                    send(new ResponseBatch(Response.of(ClientHandler.withConnectionHeader(HTTP1Server.statusResponse(StatusCode._400), false))), false);
+                    return;
+                }
+                if (requestLength == 0) {
+                    close();
+                    return;
+                }
+                state = State.PROCESSING;
+                key.interestOps(0);
+                parser.parse(requestView.limit(requestLength));        // the handler is picked by the method, the keep-alive limit may have stopped the parser short of it
+                loop.dispatch(this, List.of(new IncomingRequest(id, new String(requestBytes, 0, requestLength), loop.getHandlers().find(parser), -1, null)), handled, true);
+                return;
+            }
+            buffer.flip();
+
+            // A body is stored as it arrives, the body timeout only runs while nothing does
+            ArrayList<IncomingRequest> requests = new ArrayList<>();
+            if (receiving != null) {
+                receiving.body.append(buffer);
+                if (!receiving.body.isComplete()) {
+                    resetDeadline(ServerConfig.BODY_TIMEOUT);
+                    return;
+                }
+                receiving.arrived(reading);
+                requests.add(receiving);
+                receiving = null;
+            }
+
+            int count = buffer.remaining();
+            if (requestLength == 0 && count > 0) {
+                resetDeadline(ServerConfig.HEADER_TIMEOUT);
+                reading = ServerEvents.read();
+            }
+            if (requestLength + count > requestBytes.length) {
+                requestBytes = Arrays.copyOf(requestBytes, Math.max(requestBytes.length * 2, requestLength + count));
+                requestView = ByteBuffer.wrap(requestBytes);
+            }
+            buffer.get(requestBytes, requestLength, count);
+            requestLength += count;
+
+            dispatchBuffered(requests);
+        } catch (IOException e) {
+            Log.warn("[Error] failed to communicate with client");
+            close();
+        }
+    }
+
+    // Hands every complete request in the buffer to a worker in one go, so pipelined requests are answered in order and their responses written together
+    // A request is complete once the blank line ending the headers has arrived along with Content-Length bytes of body, a body still arriving stops the scan
+    // requests holds any already completed by the read that led here
+    private void dispatchBuffered(ArrayList<IncomingRequest> requests) {
+        try {
+            while (receiving == null && handled + requests.size() < ServerConfig.MAX_KEEP_ALIVE_REQUESTS) {
+                RequestParser.Result result = parser.parse(requestView.limit(requestLength));
+                if (result == RequestParser.Result.TOO_LARGE) {
+                    reject(requests, StatusCode._431);
+                    return;
+                }
+                if (result == RequestParser.Result.MALFORMED) {
+                    reject(requests, StatusCode._400);
+                    return;
+                }
+                if (result == RequestParser.Result.ENCODED) {
+                    reject(requests, StatusCode._501);
+                    return;
+                }
+                int headerEnd = parser.getHeaderEnd();
+                if (headerEnd == -1) break;
+                long length = parser.getContentLength();
+                if (length > ServerConfig.MAX_BODY_SIZE) {
+                    reject(requests, StatusCode._413);
+                    return;
+                }
+                IncomingRequest request = new IncomingRequest(id, new String(requestBytes, 0, headerEnd), loop.getHandlers().find(parser), parser.hasContentLength() ? length : -1, length > 0 ? new RequestBody(length) : null);
+                int taken = request.body == null ? 0 : request.body.append(requestBytes, headerEnd, requestLength - headerEnd);
+                requestLength -= headerEnd + taken;
+                System.arraycopy(requestBytes, headerEnd + taken, requestBytes, 0, requestLength);
+                parser.reset();
+                if (request.body != null && !request.body.isComplete()) receiving = request;
+                else {
+                    request.arrived(reading);
+                    requests.add(request);
+                }
+                if (requestLength > 0) reading = ServerEvents.read();     // the next pipelined request has already begun to arrive
+            }
+        } catch (IOException e) {
+            Log.error("[Error] failed to store a request body", e);
+            reject(requests, StatusCode._500);
+            return;
+        }
+        if (requests.isEmpty()) {
+            if (receiving != null) resetDeadline(ServerConfig.BODY_TIMEOUT);
+            return;
+        }
+
+        deadline.cancel();
+        state = State.PROCESSING;
+        key.interestOps(0);
+        loop.dispatch(this, requests, handled, false);
+        handled += requests.size();
+    }
+
+    // Starts writing responses, anything the socket can't take right away is finished once it becomes writable
+    void send(ResponseBatch responses, boolean keepAlive) {
+        if (state == State.CLOSED) {
+            responses.close();
+            return;
+        }
+        responses.log(address);
+        this.keepAlive = keepAlive;
+        state = State.WRITING;
+        pendingWrite = responses;
+        responses.onSourceReady(() -> loop.execute(this::onWritable));
+        onWritable();
+    }
+
+    void onWritable() {
+        if (state != State.WRITING) return;
+        try {
+            if (!pendingWrite.writeTo(channel, id)) {
+                key.interestOps(pendingWrite.isWaitingForSource() ? 0 : SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrite.close();
+            pendingWrite = null;
+            if (keepAlive) awaitNextRequest();
+            else finishResponse();
+        } catch (IOException e) {
+            Log.warn("[Error] failed to communicate with client");
+            close();
+        }
+    }
+
+    // Goes back to reading on a persistent connection, answering straight away if the next pipelined request is already buffered
+    private void awaitNextRequest() {
+        state = State.READING;
+        key.interestOps(SelectionKey.OP_READ);
+        resetDeadline(receiving != null ? ServerConfig.BODY_TIMEOUT : requestLength == 0 ? ServerConfig.KEEP_ALIVE_TIMEOUT : ServerConfig.HEADER_TIMEOUT);
+        dispatchBuffered(new ArrayList<>());
+    }
+
+    // Answers with an error and closes, dropping the requests that were waiting to be dispatched
+    private void reject(List<IncomingRequest> requests, StatusCode status) {
+        for (IncomingRequest request : requests) request.close();
+        if (receiving != null) receiving.close();
+        receiving = null;
+        deadline.cancel();
+        send(new ResponseBatch(Response.of(ClientHandler.withConnectionHeader(HTTP1Server.statusResponse(status), false))), false);
+    }
+
+    // Half closes the connection once the response is out, then drains anything the client still sends until it closes or the linger time runs out
+    private void finishResponse() throws IOException {
+        if (ServerConfig.LINGER_TIMEOUT <= 0) {
+            close();
+            return;
+        }
+        channel.shutdownOutput();
+        release();      // a lingering connection is cheap and no longer counts towards the active limit
+        state = State.LINGERING;
+        key.interestOps(SelectionKey.OP_READ);
+        resetDeadline(ServerConfig.LINGER_TIMEOUT);
+    }
+
+    private void drain(ByteBuffer buffer) {
+        try {
+            int readin;
+            do {
+                buffer.clear();
+                readin = channel.read(buffer);
+                Metrics.bytesIn(readin);
+            } while (readin > 0);
+            if (readin == -1) close();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        if (state == State.CLOSED) return;
+        state = State.CLOSED;
+        if (pendingWrite != null) pendingWrite.close();
+        if (receiving != null) receiving.close();
+        deadline.cancel();
+        key.cancel();
+        EventLoop.closeQuietly(channel);
+        release();
+    }
+
+    private void release() {
+        if (!counted) return;
+        counted = false;
+        HTTP1Server.releaseConnection();
+    }
+
+}
@@ -0,0 +1,110 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// The body of a request, exactly Content-Length bytes read from the connection as they arrive
+// Bodies up to server.bodyMemoryThreshold are kept in an array, larger ones are spooled to a temp file so an upload of any size never has to fit in the heap
+// The connection only reads from the socket as fast as the body is stored, so a client can't send faster than the spool file is written
+public class RequestBody implements Closeable {
+
+    private final long length;
+    private final byte[] memory;        // null when spooled
+    private final FileChannel spool;    // deleted by the file system once closed, null when in memory
+    private long received = 0;
+    private int users = 1;              // the connection and every open stream, the spool is closed once all of them are done
+    private boolean closed = false;
+
+    public RequestBody(long length) throws IOException {
+        this.length = length;
+        if (length <= ServerConfig.BODY_MEMORY_THRESHOLD) {
+            this.memory = new byte[(int) length];
+            this.spool = null;
+        } else {
+            this.memory = null;
+            this.spool = FileChannel.open(Files.createTempFile("request-body", ".tmp"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isComplete() {
+        return received == length;
+    }
+
+    // Bytes of the body still to arrive
+    public long remaining() {
+        return length - received;
+    }
+
+    // Stores the bytes that are still missing from the body, returning how many it took, anything past the body belongs to the next request
+    public int append(byte[] bytes, int offset, int count) throws IOException {
+        return append(ByteBuffer.wrap(bytes, offset, count));
+    }
+
+    public int append(ByteBuffer bytes) throws IOException {
+        int count = (int) Math.min(bytes.remaining(), length - received);
+        if (memory != null) {
+            bytes.get(memory, (int) received, count);
+        } else {
+            ByteBuffer part = bytes.slice().limit(count);
+            while (part.hasRemaining()) spool.write(part, received + part.position());
+            bytes.position(bytes.position() + count);
+        }
+        received += count;
+        return count;
+    }
+
+    // A stream over the body, which stays readable after the connection is done with it until the stream itself is closed
+    public synchronized InputStream openStream() {
+        if (closed) throw new IllegalStateException("request body already closed");
+        users++;
+        return new InputStream() {
+            private long position = 0;
+            private boolean released = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (position >= received) return -1;
+                count = (int) Math.min(count, received - position);
+                if (memory != null) System.arraycopy(memory, (int) position, buffer, offset, count);
+                else count = spool.read(ByteBuffer.wrap(buffer, offset, count), position);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close() {
+                if (released) return;
+                released = true;
+                release();
+            }
+        };
+    }
+
+    // Called by the connection once the handler has returned, streams handed off to other threads keep the body alive
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        release();
+    }
+
+    private synchronized void release() {
+        if (--users > 0 || spool == null) return;
+        try {
+            spool.close();
+        } catch (IOException e) {
+            // the file is deleted on close, there is nothing else to lose
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Incremental HTTP request parser working directly on the received bytes, so a request split over several reads is never rescanned or truncated
+// The buffer handed to parse holds the request from index 0 up to its limit, and every field is kept as offsets into it rather than as Strings
+public class RequestParser {
+
+    // MALFORMED means where the request ends can't be known, so the connection has to be closed rather than read on from an unknown position
+    // ENCODED is a request with a Transfer-Encoding, its body isn't decoded so it ends nobody knows where either
+    public enum Result { INCOMPLETE, COMPLETE, TOO_LARGE, MALFORMED, ENCODED }
+
+    private enum Phase { REQUEST_LINE, HEADERS, BODY }
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+
+    private ByteBuffer buffer;
+    private byte[] array;
+    private int arrayOffset;
+    private Phase phase = Phase.REQUEST_LINE;
+    private int scanned = 0;        // next index to look at, so each byte is only ever scanned once
+    private int lineStart = 0;
+
+    private int methodStart, methodEnd, pathStart, pathEnd, versionStart, versionEnd;
+    private int fieldCount;         // whitespace separated fields on the request line
+    private int[] headers = new int[4 * 16];     // name start, name end, value start, value end for each header
+    private int headerCount;
+    private int headerEnd = -1;
+    private long contentLength = 0;
+    private boolean hasLength = false;      // whether a Content-Length header has been seen
+    private boolean malformed = false;
+    private boolean encoded = false;        // whether a Transfer-Encoding header has been seen
+
+    // Scans whatever arrived since the last call, returning COMPLETE once the headers and Content-Length bytes of body are all in the buffer
+    public Result parse(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.array = buffer.hasArray() ? buffer.array() : null;
+        this.arrayOffset = buffer.hasArray() ? buffer.arrayOffset() : 0;
+        int limit = buffer.limit();
+
+        while (phase != Phase.BODY && scanned < limit) {
+            int newline = indexOfNewline(scanned, limit);
+            if (newline == -1) {
+                scanned = limit;
+                break;
+            }
+            scanned = newline + 1;
+
+            int lineEnd = scanned - 1;
+            if (lineEnd > lineStart && at(lineEnd - 1) == '\r') lineEnd--;
+
+            if (phase == Phase.REQUEST_LINE) {
+                parseRequestLine(lineStart, lineEnd);
+                phase = Phase.HEADERS;
+            } else if (lineEnd == lineStart) {
+                headerEnd = scanned;
+                phase = Phase.BODY;
+            } else {
+                parseHeader(lineStart, lineEnd);
+            }
+            lineStart = scanned;
+        }
+
+        if (malformed) return Result.MALFORMED;
+        if (encoded) return Result.ENCODED;
+        if (phase != Phase.BODY) return scanned > ServerConfig.MAX_HEADER_SIZE ? Result.TOO_LARGE : Result.INCOMPLETE;
+        if (headerEnd > ServerConfig.MAX_HEADER_SIZE) return Result.TOO_LARGE;
+        return limit >= requestEnd() ? Result.COMPLETE : Result.INCOMPLETE;
+    }
+
+    private int indexOfNewline(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (at(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    // Heap buffers are read through their backing array, which keeps the scanning loops free of per byte bounds checks
+    private byte at(int index) {
+        return array != null ? array[arrayOffset + index] : buffer.get(index);
+    }
+
+    // Forgets the current request so the parser can be reused for the next one on the connection, once the caller has moved the remaining bytes to the front
+    public void reset() {
+        phase = Phase.REQUEST_LINE;
+        scanned = 0;
+        lineStart = 0;
+        fieldCount = 0;
+        methodStart = methodEnd = pathStart = pathEnd = versionStart = versionEnd = 0;
+        headerCount = 0;
+        headerEnd = -1;
+        contentLength = 0;
+        hasLength = false;
+        malformed = false;
+        encoded = false;
+    }
+
+    private void parseRequestLine(int start, int end) {
+        int i = start;
+        while (i < end) {
+            while (i < end && at(i) == ' ') i++;
+            if (i == end) break;
+            int fieldStart = i;
+            while (i < end && at(i) != ' ') i++;
+            switch (fieldCount++) {
+                case 0:
+                    methodStart = fieldStart;
+                    methodEnd = i;
+                    break;
+                case 1:
+                    pathStart = fieldStart;
+                    pathEnd = i;
+                    break;
+                case 2:
+                    versionStart = fieldStart;
+                    versionEnd = i;
+                    break;
+                default:
+                    // extra fields only count towards fieldCount, the request is rejected for them
+            }
+        }
+    }
+
+    private void parseHeader(int start, int end) {
+        int colon = start;
+        while (colon < end && at(colon) != ':') colon++;
+        if (colon == end) return;       // not a header, left for the handler to deal with
+
+        int valueStart = colon + 1;
+        while (valueStart < end && (at(valueStart) == ' ' || at(valueStart) == '\t')) valueStart++;
+        int valueEnd = end;
+        while (valueEnd > valueStart && (at(valueEnd - 1) == ' ' || at(valueEnd - 1) == '\t')) valueEnd--;
+
+        if (headerCount * 4 == headers.length) headers = Arrays.copyOf(headers, headers.length * 2);
+        headers[headerCount * 4] = start;
+        headers[headerCount * 4 + 1] = colon;
+        headers[headerCount * 4 + 2] = valueStart;
+        headers[headerCount * 4 + 3] = valueEnd;
+        headerCount++;
+
+        if (nameEquals(headerCount - 1, CONTENT_LENGTH)) {
+            // A length that isn't a plain number, or a second one disagreeing with the first, could be read differently by whatever sits in front of the server
+            long length = parseLength(valueStart, valueEnd);
+            if (length < 0 || hasLength && length != contentLength) malformed = true;
+            contentLength = length;
+            hasLength = true;
+        }
+        if (nameEquals(headerCount - 1, TRANSFER_ENCODING)) encoded = true;
+    }
+
+    // Returns -1 for anything but decimal digits, a missing Content-Length counts as no body and one too large for a long saturates so it is refused as too large
+    private long parseLength(int start, int end) {
+        long value = 0;
+        if (start == end) return -1;
+        for (int i = start; i < end; i++) {
+            byte b = at(i);
+            if (b < '0' || b > '9') return -1;
+            if (value > (Long.MAX_VALUE - 9) / 10) value = Long.MAX_VALUE;
+            else value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /*
+    *--------- Accessors, valid until the buffer is compacted or the parser reset --------------
+    */
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public int getHeaderEnd() {
+        return headerEnd;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean hasContentLength() {
+        return hasLength;
+    }
+
+    // Index just past the last byte of the body
+    public int requestEnd() {
+        return (int) Math.min(Integer.MAX_VALUE, headerEnd + contentLength);
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    public boolean methodEquals(byte[] method) {
+        return regionEquals(methodStart, methodEnd, method, false);
+    }
+
+    public boolean versionEquals(byte[] version) {
+        return regionEquals(versionStart, versionEnd, version, false);
+    }
+
+    // Compares a header's name against a lower case name without allocating
+    public boolean nameEquals(int header, byte[] lowerCaseName) {
+        return regionEquals(headers[header * 4], headers[header * 4 + 1], lowerCaseName, true);
+    }
+
+    public String getMethod() {
+        return string(methodStart, methodEnd);
+    }
+
+    public String getPath() {
+        return string(pathStart, pathEnd);
+    }
+
+    public String getVersion() {
+        return string(versionStart, versionEnd);
+    }
+
+    public String getHeaderName(int header) {
+        return string(headers[header * 4], headers[header * 4 + 1]);
+    }
+
+    public String getHeaderValue(int header) {
+        return string(headers[header * 4 + 2], headers[header * 4 + 3]);
+    }
+
+    // Value of the first header with the given lower case name, or null if the request doesn't have one
+    public String getHeader(byte[] lowerCaseName) {
+        for (int i = 0; i < headerCount; i++) {
+            if (nameEquals(i, lowerCaseName)) return getHeaderValue(i);
+        }
+        return null;
+    }
+
+    private boolean regionEquals(int start, int end, byte[] expected, boolean ignoreCase) {
+        if (end - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            byte b = at(start + i);
+            if (ignoreCase && b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != expected[i]) return false;
+        }
+        return true;
+    }
+
+    private String string(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+}
@@ -0,0 +1,139 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+
+// Describes a response as its status line and headers followed by the segments its body is made of
+// A segment is either a slice of an array or a region of the response's file, file regions stay in the file until the connection sends them with transferTo
+// so serving a file, or any range of one, costs the same heap whatever its size
+// A body whose length isn't known up front, like a CGI program's output, ends in a stream which is sent as it is produced
+public class Response {
+
+    private static final byte[] KEEP_ALIVE = ("Connection: keep-alive" + HTTP1Server.CRLF).getBytes();
+    private static final byte[] CLOSE = ("Connection: close" + HTTP1Server.CRLF).getBytes();
+    private static final Segment[] EMPTY = {};
+
+    public static final class Segment {
+        final byte[] bytes;     // null for a region of the file
+        final long position;    // offset into bytes, or into the file
+        final long length;
+
+        private Segment(byte[] bytes, long position, long length) {
+            this.bytes = bytes;
+            this.position = position;
+            this.length = length;
+        }
+
+        public static Segment bytes(byte[] bytes) {
+            return new Segment(bytes, 0, bytes.length);
+        }
+
+        public static Segment bytes(byte[] bytes, int offset, int length) {
+            return new Segment(bytes, offset, length);
+        }
+
+        public static Segment region(long position, long length) {
+            return new Segment(null, position, length);
+        }
+    }
+
+    private final byte[] head;      // status line and headers up to and including the blank line, or a whole response built in memory
+    private final byte[] connection;    // Connection header sent straight after the status line without copying the head, null for none
+    private final Segment[] body;
+    private final FileChannel file;
+    private final BodyStream stream;    // sent after the segments, null for none
+
+    private Response(byte[] head, byte[] connection, Segment[] body, FileChannel file, BodyStream stream) {
+        this.head = head;
+        this.connection = connection;
+        this.body = body;
+        this.file = file;
+        this.stream = stream;
+    }
+
+    // Wraps a response which was built in full, status line, headers and body
+    public static Response of(byte[] response) {
+        return new Response(response, null, EMPTY, null, null);
+    }
+
+    // A body made of several segments, file may be null when none of them is a region
+    public static Response withSegments(byte[] head, FileChannel file, Segment... body) {
+        return new Response(head, null, body, file, null);
+    }
+
+    // The response owns the stream from here on, the head has to frame it with Transfer-Encoding: chunked or leave it to the connection closing
+    public static Response withStream(byte[] head, BodyStream stream) {
+        return new Response(head, null, EMPTY, null, stream);
+    }
+
+    // A copy that tells the client whether the connection stays open, a bare status line is already ended by the connection closing
+    Response withConnection(boolean keepAlive) {
+        if (getStatusLineEnd() >= head.length) return this;
+        return new Response(head, keepAlive ? KEEP_ALIVE : CLOSE, body, file, stream);
+    }
+
+    // Offset just past the status line's CRLF, or the head's length when there is nothing after it
+    int getStatusLineEnd() {
+        int end = 0;
+        while (end < head.length - 1 && !(head[end] == '\r' && head[end + 1] == '\n')) end++;
+        return end + 2;
+    }
+
+    // The status code from the status line the head starts with, 0 if it doesn't start with one
+    public int getStatus() {
+        if (head.length < 12 || head[8] != ' ') return 0;
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            if (head[i] < '0' || head[i] > '9') return 0;
+            status = status * 10 + head[i] - '0';
+        }
+        return status;
+    }
+
+    public byte[] getHead() {
+        return head;
+    }
+
+    public byte[] getConnection() {
+        return connection;
+    }
+
+    // The status line and headers as sent, including the Connection header
+    public byte[] renderHead() {
+        if (connection == null) return head;
+        int statusEnd = getStatusLineEnd();
+        byte[] rendered = new byte[head.length + connection.length];
+        System.arraycopy(head, 0, rendered, 0, statusEnd);
+        System.arraycopy(connection, 0, rendered, statusEnd, connection.length);
+        System.arraycopy(head, statusEnd, rendered, statusEnd + connection.length, head.length - statusEnd);
+        return rendered;
+    }
+
+    Segment[] getSegments() {
+        return body;
+    }
+
+    public FileChannel getFile() {
+        return file;
+    }
+
+    public BodyStream getStream() {
+        return stream;
+    }
+
+    // The number of bytes that follow the head, not counting a stream
+    public long getBodyLength() {
+        long length = 0;
+        for (Segment segment : body) length += segment.length;
+        return length;
+    }
+
+    public void close() {
+        if (stream != null) stream.close();
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            // only read from, there is nothing to lose
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+// The responses to a run of pipelined requests, written to the connection in order
+// Heads and in memory segments are gathered into as few writes as possible, file regions go straight from the page cache to the socket with transferTo
+// and streamed bodies are written as their source produces them
+public final class ResponseBatch {
+
+    private final ArrayList<Response> responses = new ArrayList<>();
+    private int next = 0;               // index of the response being queued for writing
+    private int segment = 0;            // index of its next body segment, 0 also meaning its head is still to be queued
+    private ByteBuffer[] gathered;      // heads and bodies queued for the current gathering write
+    private FileChannel pendingFile;    // file whose region follows the gathered buffers
+    private long filePosition;
+    private long fileRemaining;
+    private BodyStream pendingStream;   // stream that follows the gathered buffers
+    private long writeStarted;          // nanoTime of the batch's first write, 0 until then
+    private ServerEvents.Write writing;
+    private long written;               // bytes of the batch sent so far
+
+    public ResponseBatch() {
+    }
+
+    public ResponseBatch(Response response) {
+        add(response);
+    }
+
+    public void add(Response response) {
+        Metrics.countStatus(response.getStatus());
+        responses.add(response);
+    }
+
+    public boolean isEmpty() {
+        return responses.isEmpty();
+    }
+
+    // Writes as much as the channel takes, returning whether the whole batch is out, connection is the id its write is recorded under
+    // A blocking channel always takes everything, a non-blocking one stops once the socket's send buffer is full and is resumed when it becomes writable
+    public boolean writeTo(SocketChannel channel, long connection) throws IOException {
+        if (writeStarted == 0) {
+            writeStarted = System.nanoTime();
+            writing = ServerEvents.write();
+        }
+        while (true) {
+            if (gathered != null) {
+                sent(channel.write(gathered));
+                if (hasRemaining(gathered)) {
+                    if (!channel.isBlocking()) return false;
+                    continue;
+                }
+                gathered = null;
+            }
+            if (pendingFile != null) {
+                while (fileRemaining > 0) {
+                    long sent = pendingFile.transferTo(filePosition, fileRemaining, channel);
+                    sent(sent);
+                    filePosition += sent;
+                    fileRemaining -= sent;
+                    if (sent == 0) {
+                        if (filePosition >= pendingFile.size()) throw new EOFException("file shrank while being sent");
+                        if (!channel.isBlocking()) return false;
+                    }
+                }
+                pendingFile = null;
+            }
+            if (pendingStream != null) {
+                boolean finished = pendingStream.writeTo(channel);
+                sent(pendingStream.takeWritten());
+                if (!finished) return false;
+                pendingStream = null;
+            }
+            if (next == responses.size()) {
+                if (!responses.isEmpty()) {
+                    Metrics.WRITE.record(System.nanoTime() - writeStarted);
+                    ServerEvents.commit(writing, connection, null, null, responses.get(responses.size() - 1).getStatus(), written);
+                }
+                return true;
+            }
+            gather();
+        }
+    }
+
+    // Queues heads and array segments up to and including the next file region or stream
+    private void gather() {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        while (next < responses.size()) {
+            Response response = responses.get(next);
+            if (segment == 0) {
+                byte[] head = response.getHead();
+                if (response.getConnection() == null) buffers.add(ByteBuffer.wrap(head));
+                else {
+                    int statusEnd = response.getStatusLineEnd();
+                    buffers.add(ByteBuffer.wrap(head, 0, statusEnd));
+                    buffers.add(ByteBuffer.wrap(response.getConnection()));
+                    buffers.add(ByteBuffer.wrap(head, statusEnd, head.length - statusEnd));
+                }
+            }
+            Response.Segment[] segments = response.getSegments();
+            while (segment < segments.length) {
+                Response.Segment part = segments[segment++];
+                if (part.bytes != null) {
+                    buffers.add(ByteBuffer.wrap(part.bytes, (int) part.position, (int) part.length));
+                    continue;
+                }
+                pendingFile = response.getFile();
+                filePosition = part.position;
+                fileRemaining = part.length;
+                gathered = buffers.toArray(new ByteBuffer[0]);
+                return;
+            }
+            next++;
+            segment = 0;
+            if (response.getStream() != null) {
+                pendingStream = response.getStream();
+                gathered = buffers.toArray(new ByteBuffer[0]);
+                return;
+            }
+        }
+        gathered = buffers.toArray(new ByteBuffer[0]);
+    }
+
+    private void sent(long count) {
+        written += count;
+        Metrics.bytesOut(count);
+    }
+
+    static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) if (buffer.hasRemaining()) return true;
+        return false;
+    }
+
+    // Whether the last write stopped because a streamed body had nothing ready, the connection then waits for onSourceReady rather than the socket
+    public boolean isWaitingForSource() {
+        return pendingStream != null && pendingStream.isWaiting();
+    }
+
+    // Sets what a streamed body calls, from its own thread, once it has data again after a write stopped for the lack of it
+    public void onSourceReady(Runnable onReady) {
+        for (Response response : responses) {
+            if (response.getStream() != null) response.getStream().onReady(onReady);
+        }
+    }
+
+    public void log(InetAddress address) {
+        for (Response response : responses) ClientHandler.logResponse(address, response);
+    }
+
+    // Releases the files the responses hold, once the batch is sent or the connection is dropped
+    public void close() {
+        for (int i = 0; i < responses.size(); i++) responses.get(i).close();
+        pendingFile = null;
+        pendingStream = null;
+    }
+
+    // Closes what is left of the batch and empties it so it can be reused for the next responses
+    public void reset() {
+        close();
+        responses.clear();
+        next = 0;
+        segment = 0;
+        gathered = null;
+        writeStarted = 0;
+        writing = null;
+        written = 0;
+    }
+
+}
@@ -0,0 +1,93 @@
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+// Collects what a handler says its response is, turned into a Response for the connection to send once the handler returns
+// The head is rendered into a writer of the sink's own, so handlers can still use the thread's writer for fragments while building it
+// Beginning a new status drops whatever was described before it, so an error found partway through simply replaces the response
+public class ResponseSink {
+
+    private static final Response.Segment[] NO_SEGMENTS = {};
+
+    private final HeaderWriter head = HeaderWriter.detached();
+    private boolean begun = false;
+    private final ArrayList<Response.Segment> body = new ArrayList<>();
+    private FileChannel file;
+    private BodyStream stream;
+    private Response whole;
+
+    // Begins the response, the returned writer has the status line and takes the headers, the blank line after them is added when the response is finished
+    public HeaderWriter status(StatusCode status) {
+        discard();
+        begun = true;
+        return head.reset().write(status.getStatusLine());
+    }
+
+    // A response with no body, its status and Content-Length: 0 so a persistent connection can carry on after it, the returned writer takes further headers
+    public HeaderWriter sendStatus(StatusCode status) {
+        return status(status).header(HeaderWriter.CONTENT_LENGTH, 0);
+    }
+
+    // A response a handler built whole, the sink owns it from here on
+    public void send(Response response) {
+        discard();
+        whole = response;
+    }
+
+    // Adds bytes to the body, the array is sent as it is so it mustn't be changed afterwards
+    public ResponseSink write(byte[] bytes) {
+        return write(bytes, 0, bytes.length);
+    }
+
+    public ResponseSink write(byte[] bytes, int offset, int length) {
+        checkBegun();
+        body.add(Response.Segment.bytes(bytes, offset, length));
+        return this;
+    }
+
+    // Adds a region of a file to the body, sent with transferTo so its bytes never pass through the heap
+    // The sink owns the file from here on and closes it once the body is sent, every region of one response comes from the same file
+    public ResponseSink transfer(FileChannel file, long position, long length) {
+        checkBegun();
+        if (this.file != null && this.file != file) throw new IllegalStateException("a response can only send from one file");
+        this.file = file;
+        body.add(Response.Segment.region(position, length));
+        return this;
+    }
+
+    // Ends the body with a stream sent as it is produced, the head has to frame it with Transfer-Encoding: chunked or leave it to the connection closing
+    public void stream(BodyStream stream) {
+        checkBegun();
+        if (!body.isEmpty()) throw new IllegalStateException("a streamed body can't follow written ones");
+        this.stream = stream;
+    }
+
+    // The response described, a handler that described nothing gets a 500
+    Response finish() {
+        if (whole != null) return whole;
+        if (!begun) {
+            Log.error("[Error] a handler returned without a response");
+            return Response.of(HTTP1Server.statusResponse(StatusCode._500));
+        }
+        byte[] rendered = head.finish();
+        if (stream != null) return Response.withStream(rendered, stream);
+        if (body.isEmpty() && file == null) return Response.of(rendered);
+        return Response.withSegments(rendered, file, body.toArray(NO_SEGMENTS));
+    }
+
+    // Releases whatever was described, for a response that is dropped or replaced
+    void discard() {
+        if (whole != null) whole.close();
+        if (stream != null) stream.close();
+        if (file != null) EventLoop.closeQuietly(file);
+        whole = null;
+        stream = null;
+        file = null;
+        body.clear();
+        begun = false;
+    }
+
+    private void checkBegun() {
+        if (!begun) throw new IllegalStateException("a response body needs a status first");
+    }
+
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded lock-free queue for many producers and a single consumer, each slot carries a sequence number telling producers and the consumer whose turn it is
+public class RingBuffer<T> {
+
+    private final Object[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();      // next position a producer claims
+    private long head = 0;                                  // next position the consumer reads, only touched by the consumer
+
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;     // power of two so a position maps to its slot with a mask
+        this.entries = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+    }
+
+    // Claims the next slot with compare and set, returning false instead of waiting when the buffer is full
+    public boolean offer(T entry) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    entries[index] = entry;
+                    sequences.set(index, position + 1);     // publishes the entry to the consumer
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Takes the oldest entry or returns null when empty, must only be called from the single consumer thread
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) return null;
+        T entry = (T) entries[index];
+        entries[index] = null;
+        sequences.set(index, head + entries.length);      // hands the slot back to producers for the next lap
+        head++;
+        return entry;
+    }
+
+    public boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+}
@@ -0,0 +1,88 @@
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.nio.channels.*;
+
+// Non-blocking server mode, connections are accepted here and then multiplexed over a small set of selector threads
+public class SelectorServer {
+
+    private static volatile EventLoop[] loops = new EventLoop[0];
+
+    // Handlers may block on the file system or a CGI process, so they run on the stages the handler table names and never on a selector thread
+    // With several acceptors each takes its own share of the event loops, so no two acceptors hand connections to the same loop unless there are fewer loops than acceptors
+    public static void serve(int port, HandlerTable handlers) {
+
+        ServerSocketChannel[] listeners;
+        try {
+            listeners = HTTP1Server.listen(port);
+        } catch (IOException e) {
+            Log.error("[Fatal Error] Failed to set up server", e);
+            return;
+        }
+
+        EventLoop[] loops = new EventLoop[Math.max(1, ServerConfig.IO_THREADS)];
+        SelectorServer.loops = loops;
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(handlers);
+                Thread thread = new Thread(loops[i], "event-loop-" + i);
+                thread.start();
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) EventLoop.closeQuietly(listener);
+            Log.error("[Fatal Error] Failed to set up server", e);
+            return;
+        }
+
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            EventLoop[] share = share(loops, i, listeners.length);
+            new Thread(() -> accept(listener, share), "acceptor-" + i).start();
+        }
+        accept(listeners[0], share(loops, 0, listeners.length));
+
+    }
+
+    private static void accept(ServerSocketChannel listener, EventLoop[] loops) {
+
+        try (ServerSocketChannel serverChannel = listener) {
+
+            int next = 0;
+            SocketChannel clientChannel;
+            while ((clientChannel = serverChannel.accept()) != null) {
+                // Accepts a new connection and hands it to the next event loop in turn, over the limit it is turned away right here
+                if (!HTTP1Server.tryReserveConnection()) {
+                    HTTP1Server.rejectConnection(clientChannel);
+                    continue;
+                }
+                if (Log.isEnabled(Log.Level.DEBUG)) Log.debug("New Connection From: " + clientChannel.socket().getInetAddress() + " Active Connections: " + HTTP1Server.getActiveCount());
+                loops[next].register(clientChannel, System.nanoTime());
+                next = (next + 1) % loops.length;
+            }
+
+        } catch (IOException e) {
+            Log.error("[Fatal Error] Failed to accept connections", e);
+        }
+
+    }
+
+    // The loops acceptor i of n hands its connections to, every n-th one starting from its own index
+    private static EventLoop[] share(EventLoop[] loops, int acceptor, int acceptors) {
+        if (loops.length < acceptors) return new EventLoop[] { loops[acceptor % loops.length] };
+        EventLoop[] share = new EventLoop[(loops.length - acceptor + acceptors - 1) / acceptors];
+        for (int i = 0; i < share.length; i++) share[i] = loops[acceptor + i * acceptors];
+        return share;
+    }
+
+    static int getLoopCount() {
+        return loops.length;
+    }
+
+    // Tasks queued for the event loops, read without stopping them so only roughly consistent
+    static int getQueuedTasks() {
+        int queued = 0;
+        for (EventLoop loop : loops) if (loop != null) queued += loop.getQueuedTasks();
+        return queued;
+    }
+
+}
@@ -0,0 +1,113 @@
+// Tunable server settings, read once at startup from -D system properties so they can be changed without recompiling
+public final class ServerConfig {
+
+    // Threads accepting connections, each on its own socket bound with SO_REUSEPORT and feeding its own worker group or share of the event loops
+    public static final int ACCEPTORS = Math.max(1, Integer.getInteger("server.acceptors", 1));
+
+    // Number of selector threads used by the non-blocking server mode
+    public static final int IO_THREADS = Integer.getInteger("server.ioThreads", Runtime.getRuntime().availableProcessors());
+
+    // Number of threads file handlers run on, unless server.fileThreads says otherwise
+    public static final int WORKER_THREADS = Integer.getInteger("server.workerThreads", HTTP1Server.MAXIMUM_THREAD_COUNT);
+
+    // Tasks that may wait for a pool thread before further connections are turned away with a 503
+    public static final int QUEUE_LIMIT = Integer.getInteger("server.queueLimit", 100);
+
+    // Threads, queue limit and overload policy, reject or drop-oldest, of the file stage, which runs GET, HEAD and the unimplemented methods
+    public static final int FILE_THREADS = Integer.getInteger("server.fileThreads", WORKER_THREADS);
+    public static final int FILE_QUEUE_LIMIT = Integer.getInteger("server.fileQueueLimit", QUEUE_LIMIT);
+    public static final Stage.Overload FILE_OVERLOAD = overload("server.fileOverload");
+
+    // The same for the CGI stage, which runs POST, kept apart since a program can take seconds where a file takes microseconds
+    public static final int CGI_THREADS = Integer.getInteger("server.cgiThreads", 16);
+    public static final int CGI_QUEUE_LIMIT = Integer.getInteger("server.cgiQueueLimit", 50);
+    public static final Stage.Overload CGI_OVERLOAD = overload("server.cgiOverload");
+
+    // Largest request line plus headers accepted before the client is sent a 431
+    public static final int MAX_HEADER_SIZE = Integer.getInteger("server.maxHeaderSize", 64 * 1024);
+
+    // Milliseconds a connection may sit without sending the first byte of a request before being sent a 408
+    public static final int IDLE_TIMEOUT = Integer.getInteger("server.idleTimeout", 5000);
+
+    // Milliseconds a client has, from its first byte, to finish sending the request line and headers
+    public static final int HEADER_TIMEOUT = Integer.getInteger("server.headerTimeout", 10000);
+
+    // Milliseconds a client may go without sending any of a Content-Length body once the headers are in
+    public static final int BODY_TIMEOUT = Integer.getInteger("server.bodyTimeout", 30000);
+
+    // Milliseconds a persistent connection may sit idle between requests before it is closed
+    public static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("server.keepAliveTimeout", 5000);
+
+    // Requests served on one persistent connection before the server closes it
+    public static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger("server.maxKeepAliveRequests", 100);
+
+    // Milliseconds a closing connection keeps draining client input after the response, 0 closes immediately
+    public static final int LINGER_TIMEOUT = Integer.getInteger("server.lingerTimeout", 2000);
+
+    // Resolution of the timer wheel deadlines are expired with
+    public static final int TIMER_TICK = Integer.getInteger("server.timerTick", 100);
+
+    // Bytes of file content and headers the static file cache may hold, 0 disables it
+    public static final int CACHE_SIZE = Integer.getInteger("server.cacheSize", 32 * 1024 * 1024);
+
+    // Largest file kept in the static file cache, bigger ones are always sent straight from disk
+    public static final int CACHE_MAX_FILE_SIZE = Integer.getInteger("server.cacheMaxFileSize", 1024 * 1024);
+
+    // Bytes of gzip and deflate variants kept so files aren't compressed again on every request, 0 disables the cache
+    public static final int COMPRESSION_CACHE_SIZE = Integer.getInteger("server.compressionCacheSize", 16 * 1024 * 1024);
+
+    // Largest file compressed on the fly, bigger ones are only sent compressed when a pre-built .gz sibling exists
+    public static final int COMPRESS_MAX_FILE_SIZE = Integer.getInteger("server.compressMaxFileSize", 4 * 1024 * 1024);
+
+    // Size of the buffers CGI output is streamed to the client in, each one sent as it fills or as soon as the program pauses
+    public static final int STREAM_BUFFER_SIZE = Integer.getInteger("server.streamBufferSize", 8 * 1024);
+
+    // Buffers of CGI output a non-blocking connection may hold while the client is slower than the program, beyond that the program waits
+    public static final int STREAM_BUFFERS = Integer.getInteger("server.streamBuffers", 4);
+
+    // Comma separated CGI programs, relative to the working directory, that speak the worker protocol and are kept running between requests
+    public static final String PERSISTENT_CGI = System.getProperty("server.persistentCgi", "");
+
+    // Worker processes kept running for each of those programs, 0 runs every program once per request
+    public static final int CGI_WORKERS = Integer.getInteger("server.cgiWorkers", 2);
+
+    // Milliseconds between health checks of CGI workers, an idle worker has this long to answer a ping and a new one to say it is ready
+    public static final int CGI_HEALTH_INTERVAL = Integer.getInteger("server.cgiHealthInterval", 5000);
+
+    // Bytes of a CGI worker's output held for one request while its client is slow to take them, past this the request is aborted
+    public static final long CGI_WORKER_BUFFER = Long.getLong("server.cgiWorkerBuffer", 8 * 1024 * 1024);
+
+    // Milliseconds a CGI worker with requests in flight may go without sending anything before it is restarted
+    public static final int CGI_WORKER_TIMEOUT = Integer.getInteger("server.cgiWorkerTimeout", 30000);
+
+    // Request bodies up to this many bytes are kept in memory, larger ones are spooled to a temp file as they arrive
+    public static final int BODY_MEMORY_THRESHOLD = Integer.getInteger("server.bodyMemoryThreshold", 64 * 1024);
+
+    // Largest Content-Length accepted before the client is sent a 413
+    public static final long MAX_BODY_SIZE = Long.getLong("server.maxBodySize", 2L * 1024 * 1024 * 1024);
+
+    // Whether POST bodies are percent-decoded, %XX and '+', before a CGI program sees them, off leaves that to the program and only removes '!' escapes
+    public static final boolean CGI_PERCENT_DECODE = Boolean.getBoolean("server.cgiPercentDecode");
+
+    // Path the server's counters and latency histograms are served from instead of a file, empty serves no metrics
+    public static final String METRICS_PATH = System.getProperty("server.metricsPath", "/metrics");
+
+    // File a flight recording of each request's phases is written to as the server exits, empty records nothing unless a recording is started some other way
+    public static final String JFR_FILE = System.getProperty("server.jfr", "");
+
+    // Milliseconds a phase has to take to be kept in that recording, a few milliseconds keeps the overhead negligible in production
+    public static final int JFR_THRESHOLD = Integer.getInteger("server.jfrThreshold", 0);
+
+    private ServerConfig() {}
+
+    private static Stage.Overload overload(String property) {
+        String policy = System.getProperty(property, "reject");
+        try {
+            return Stage.Overload.valueOf(policy.strip().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[Error] " + property + " must be reject or drop-oldest, not " + policy + ", rejecting");
+            return Stage.Overload.REJECT;
+        }
+    }
+
+}
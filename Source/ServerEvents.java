@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Supplier;
+import jdk.jfr.*;
+
+// JDK Flight Recorder events for the phases a request goes through, so a slow request can be split into where its time went
+// While no recording has a type enabled its events aren't even allocated, the factories below return null and commit ignores it, and none of them take a stack trace
+// Each carries the id of the connection it belongs to, the phases of one request can be joined on it and read in time order
+// Their names all start with httpserver., which is how Tools/PhaseSummary picks them out of a recording
+public final class ServerEvents {
+
+    private ServerEvents() {}
+
+    // The fields every phase has, those that don't apply to a phase are left null or 0
+    @Category("HTTP Server")
+    @StackTrace(false)
+    abstract static class Phase extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        int status;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("httpserver.Accept")
+    @Label("Accept")
+    @Description("From the acceptor taking a connection to a thread or event loop starting to serve it")
+    static final class Accept extends Phase {}
+
+    @Name("httpserver.Read")
+    @Label("Read Request")
+    @Description("From the first byte of a request arriving to its headers and body having all arrived")
+    static final class Read extends Phase {}
+
+    @Name("httpserver.Queue")
+    @Label("Queue Wait")
+    @Description("From a request having arrived to its handler starting, waiting for a worker or for the requests pipelined ahead of it")
+    static final class Queue extends Phase {}
+
+    @Name("httpserver.Handle")
+    @Label("Handle")
+    @Description("Generating the response, from the handler starting to it returning")
+    static final class Handle extends Phase {}
+
+    @Name("httpserver.FileRead")
+    @Label("File Read")
+    @Description("Reading a file whole into memory to serve it and offer it to the cache")
+    static final class FileRead extends Phase {}
+
+    @Name("httpserver.CgiSpawn")
+    @Label("CGI Spawn")
+    @Description("Starting a CGI program for a request")
+    static final class CgiSpawn extends Phase {}
+
+    @Name("httpserver.Write")
+    @Label("Write")
+    @Description("From the first write of a connection's responses to their last byte being sent, streamed bodies are written as their program produces them")
+    static final class Write extends Phase {}
+
+    // One of each type, only ever asked whether a recording has the type enabled, which reads a flag of the event class
+    private static final Accept ACCEPT = new Accept();
+    private static final Read READ = new Read();
+    private static final Queue QUEUE = new Queue();
+    private static final Handle HANDLE = new Handle();
+    private static final FileRead FILE_READ = new FileRead();
+    private static final CgiSpawn CGI_SPAWN = new CgiSpawn();
+    private static final Write WRITE = new Write();
+
+    // Events whose phase starts now, null while no recording wants their type
+    static Accept accept() {
+        return begun(ACCEPT, Accept::new);
+    }
+
+    static Read read() {
+        return begun(READ, Read::new);
+    }
+
+    static Queue queue() {
+        return begun(QUEUE, Queue::new);
+    }
+
+    static Handle handle() {
+        return begun(HANDLE, Handle::new);
+    }
+
+    static FileRead fileRead() {
+        return begun(FILE_READ, FileRead::new);
+    }
+
+    static CgiSpawn cgiSpawn() {
+        return begun(CGI_SPAWN, CgiSpawn::new);
+    }
+
+    static Write write() {
+        return begun(WRITE, Write::new);
+    }
+
+    private static <T extends Phase> T begun(T probe, Supplier<T> type) {
+        if (!probe.isEnabled()) return null;
+        T event = type.get();
+        event.begin();
+        return event;
+    }
+
+    // Ends an event and commits it if a recording wants it, the method and path are only split out of the request's head, which may be null, when it is kept
+    static void commit(Phase event, long connection, String head, int status, long bytes) {
+        if (event == null) return;
+        event.end();
+        if (!event.shouldCommit()) return;
+        String method = null;
+        String path = null;
+        if (head != null) {
+            int lineEnd = head.indexOf('\n');
+            String[] fields = (lineEnd == -1 ? head : head.substring(0, lineEnd)).strip().split(" +");
+            method = fields[0];
+            if (fields.length > 1) path = fields[1];
+        }
+        fill(event, connection, method, path, status, bytes);
+    }
+
+    static void commit(Phase event, long connection, String method, String path, int status, long bytes) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) fill(event, connection, method, path, status, bytes);
+    }
+
+    private static void fill(Phase event, long connection, String method, String path, int status, long bytes) {
+        event.connection = connection;
+        event.method = method;
+        event.path = path;
+        event.status = status;
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    // Starts a recording of only the server's events when server.jfr names a file, it is written there as the server exits
+    // Events shorter than the threshold are dropped when they end, so a production server can leave it on and still catch the slow requests
+    static void startRecording() {
+        if (ServerConfig.JFR_FILE.isEmpty()) return;
+        try {
+            Recording recording = new Recording();
+            recording.setName("http-server");
+            for (Class<? extends Event> type : List.of(Accept.class, Read.class, Queue.class, Handle.class, FileRead.class, CgiSpawn.class, Write.class)) {
+                recording.enable(type).withThreshold(Duration.ofMillis(ServerConfig.JFR_THRESHOLD));
+            }
+            recording.setToDisk(true);
+            recording.setDestination(Path.of(ServerConfig.JFR_FILE));
+            recording.start();
+            Log.info("Recording request phases to " + ServerConfig.JFR_FILE);
+        } catch (IOException | IllegalStateException | SecurityException e) {
+            Log.error("[Error] failed to start the flight recording", e);
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One stage of the server's request processing, a bounded number of tasks running at once and a bounded queue of tasks waiting to
+// Handlers that serve files and ones that run CGI programs are on separate stages, so a burst of slow programs fills the CGI stage's queue
+// and is turned away there while static requests keep flowing through theirs
+// In the non-blocking mode tasks run on a pool of threads of the stage's own, accepting, reading and parsing, and writing stay on the acceptor and event loop threads, which never block
+// In the blocking and virtual thread modes the connection's own thread runs its task once the stage admits it, so there is no handoff
+public class Stage {
+
+    // What happens to a task that arrives while the stage's threads are busy and its queue is full
+    public enum Overload {
+        REJECT,         // the new task is answered with a 503
+        DROP_OLDEST     // the task that has waited longest is answered with a 503 instead, its client is the likeliest to have given up
+    }
+
+    static final Stage FILE = new Stage("file", ServerConfig.FILE_THREADS, ServerConfig.FILE_QUEUE_LIMIT, ServerConfig.FILE_OVERLOAD);
+    static final Stage CGI = new Stage("cgi", ServerConfig.CGI_THREADS, ServerConfig.CGI_QUEUE_LIMIT, ServerConfig.CGI_OVERLOAD);
+    static final Stage[] ALL = { FILE, CGI };
+
+    private final String name;
+    private final int threads;
+    private final int queueLimit;
+    private final Overload overload;
+    private final ThreadPoolExecutor pool;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final ReentrantLock gate = new ReentrantLock();           // guards the two fields below, for tasks run on their callers' threads
+    private int running = 0;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    final Metrics.Histogram waiting;       // from a task being queued to a thread starting it
+    final Metrics.Histogram serving;       // from a thread starting a task to it finishing
+
+    Stage(String name, int threads, int queueLimit, Overload overload) {
+        this.name = name;
+        this.threads = Math.max(1, threads);
+        this.queueLimit = Math.max(0, queueLimit);
+        this.overload = overload;
+        AtomicInteger count = new AtomicInteger();
+        BlockingQueue<Runnable> queue = this.queueLimit == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(this.queueLimit);
+        this.pool = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS, queue, task -> new Thread(task, name + "-stage-" + count.incrementAndGet()));
+        this.pool.allowCoreThreadTimeOut(true);
+        String label = "stage=\"" + name + "\"";
+        this.waiting = new Metrics.Histogram("stage_queue_wait_seconds", "Time tasks waited in a stage's queue", label);
+        this.serving = new Metrics.Histogram("stage_service_seconds", "Time a stage's threads spent on a task", label);
+    }
+
+    // Queues a task, over the limit the overload policy picks which task is turned away and that task's onRejected runs on the calling thread instead
+    public void submit(Runnable task, Runnable onRejected) {
+        Task queued = new Task(task, onRejected);
+        while (true) {
+            try {
+                pool.execute(queued);
+                return;
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                if (overload == Overload.DROP_OLDEST && pool.getQueue().poll() instanceof Task oldest) {
+                    oldest.onRejected.run();
+                    continue;       // its place is free unless another submitter took it first
+                }
+                onRejected.run();
+                return;
+            }
+        }
+    }
+
+    // Runs a task on the calling thread once fewer than the stage's thread count of such tasks are running, waiting in the stage's queue until then
+    // Returns false without the task having run if the overload policy turned it away, the pool is not used so callers must not be event loop threads
+    public boolean runOnCaller(Runnable task) {
+        Task queued = new Task(task, null);
+        Waiter waiter = null;
+        gate.lock();
+        try {
+            if (running < threads && waiters.isEmpty()) {
+                running++;
+            } else if (waiters.size() < queueLimit || overload == Overload.DROP_OLDEST && !waiters.isEmpty()) {
+                if (waiters.size() >= queueLimit) {
+                    rejected.increment();
+                    waiters.poll().admit(false);
+                }
+                waiter = new Waiter();
+                waiters.add(waiter);
+                while (waiter.admitted == null) waiter.turn.awaitUninterruptibly();
+                if (!waiter.admitted) return false;
+            } else {
+                rejected.increment();
+                return false;
+            }
+        } finally {
+            gate.unlock();
+        }
+        try {
+            queued.run();
+        } finally {
+            // The place passes straight to the longest waiting task, running only drops when nobody is waiting
+            gate.lock();
+            try {
+                Waiter next = waiters.poll();
+                if (next != null) next.admit(true);
+                else running--;
+            } finally {
+                gate.unlock();
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getActiveCount() {
+        gate.lock();
+        try {
+            return pool.getActiveCount() + running;
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        gate.lock();
+        try {
+            return pool.getQueue().size() + waiters.size();
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    public Overload getOverload() {
+        return overload;
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    // A caller waiting for its turn to run a task, admitted is set under gate to true when its turn comes or false if it was dropped
+    private final class Waiter {
+        private final Condition turn = gate.newCondition();
+        private Boolean admitted;
+
+        void admit(boolean admitted) {
+            this.admitted = admitted;
+            turn.signal();
+        }
+    }
+
+    private final class Task implements Runnable {
+        private final Runnable task;
+        private final Runnable onRejected;
+        private final long queued = System.nanoTime();
+
+        Task(Runnable task, Runnable onRejected) {
+            this.task = task;
+            this.onRejected = onRejected;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            waiting.record(start - queued);
+            try {
+                task.run();
+            } finally {
+                serving.record(System.nanoTime() - start);
+                completed.increment();
+            }
+        }
+    }
+
+}
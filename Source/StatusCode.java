@@ -1,6 +1,7 @@
 public enum StatusCode { 
     _200(200, "OK"),  
     _204(204, "No Content"), 
+    _206(206, "Partial Content"),
     _304(304, "Not Modified"),
     _400(400, "Bad Request"),
     _403(403, "Forbidden"), 
@@ -8,6 +9,10 @@ public enum StatusCode {
     _405(405, "Method Not Allowed"), 
     _408(408, "Request Timeout"), 
     _411(411, "Length Required"),
+    _412(412, "Precondition Failed"),
+    _413(413, "Payload Too Large"),
+    _416(416, "Range Not Satisfiable"),
+    _431(431, "Request Header Fields Too Large"),
     _500(500, "Internal Server Error"), 
     _501(501, "Not Implemented"), 
     _503(503, "Service Unavailable"), 
@@ -15,10 +20,12 @@ public enum StatusCode {
 
     private final String descirption;
     private final int number;
+    private final byte[] statusLine;    // every response starts with one, so it is encoded once up front
 
     StatusCode(int number, String description) {
         this.descirption = description;
         this.number = number;
+        this.statusLine = (HTTP1Server.SUPPORTED_VERSION + " " + number + " " + description + HTTP1Server.CRLF).getBytes();
     }
 
     public String getDescrption() {
@@ -28,6 +35,10 @@ public enum StatusCode {
     public int getNumber() {
         return number;
     }
+
+    public byte[] getStatusLine() {
+        return statusLine;
+    }
     
     public String toString() {
         return number + " " + descirption;
@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Checks FormDecoder against fixed bodies and what they decode to, the outputs of the ! escapes are the ones the original decode() gave
+// Each body is decoded whole and again fed a byte or two per read, so escapes and %-sequences straddle reads
+// Usage: make test, exits with 1 after listing the bodies that decoded wrongly
+public class FormDecoderTest {
+
+    // Body, then what it decodes to with only the ! escapes removed
+    private static final String[][] ESCAPES = {
+        { "", "" },
+        { "!", "!" },
+        { "!!", "!" },
+        { "!!!", "!!" },
+        { "!!!!", "!!" },
+        { "!!!*", "!*" },
+        { "a!", "a!" },
+        { "!a", "!a" },
+        { "!*", "*" },
+        { "!!*", "!*" },
+        { "a!!b!(c!xd!", "a!b(c!xd!" },
+        { "x=1&y=!!2", "x=1&y=!2" },
+        { "! ", " " },
+        { "!\t!\n", "\t\n" },
+        { "a!\r!\u000Bb", "a\r\u000Bb" },
+        { "!\u00e9", "!\u00e9" },
+        { "!=!&", "!=!&" },
+        { "!+%41", "+%41" },
+        { "!%20", "!%20" },
+        { "name=John!+Smith&note=a!(b!)", "name=John+Smith&note=a(b)" },
+        { "!#![!]!?!/!,!$!@!:!;!'", "#[]?/,$@:;'" },
+        { "a".repeat(8191) + "!!x", "a".repeat(8191) + "!x" },      // the escape straddles the end of the decoder's buffer
+    };
+
+    // Body, then what it decodes to with percent decoding as well
+    private static final String[][] PERCENT = {
+        { "a%41b", "aAb" },
+        { "x=1+2", "x=1 2" },
+        { "%2b!+", "++" },
+        { "%", "%" },
+        { "%4", "%4" },
+        { "%zz%4g", "%zz%4g" },
+        { "%C3%A9", "\u00e9" },
+        { "!%41", "!A" },
+        { "a!+b", "a+b" },
+        { "a".repeat(8190) + "%41", "a".repeat(8190) + "A" },
+    };
+
+    public static void main(String[] args) throws IOException {
+        int failures = check(ESCAPES, false) + check(PERCENT, true);
+        int total = ESCAPES.length + PERCENT.length;
+        if (failures > 0) {
+            System.out.println(failures + " of " + total + " FormDecoder cases failed");
+            System.exit(1);
+        }
+        System.out.println("FormDecoder: all " + total + " cases passed");
+    }
+
+    private static int check(String[][] cases, boolean percent) throws IOException {
+        int failures = 0;
+        for (String[] c : cases) {
+            byte[] body = c[0].getBytes(StandardCharsets.UTF_8);
+            String whole = new String(FormDecoder.decode(body, percent), StandardCharsets.UTF_8);
+            String trickled;
+            try (FormDecoder decoder = new FormDecoder(new Trickle(body), percent)) {
+                trickled = new String(decoder.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (!whole.equals(c[1]) || !trickled.equals(c[1])) {
+                System.out.println((percent ? "percent " : "") + "decoding " + show(c[0]) + " gave " + show(whole) + " whole and " + show(trickled) + " trickled, expected " + show(c[1]));
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static String show(String s) {
+        if (s.length() > 40) s = s.substring(0, 16) + "..." + s.substring(s.length() - 16);
+        return "\"" + s.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t").replace("\u000B", "\\v") + "\"";
+    }
+
+    // Gives one byte then two per read in turn, the way a body arrives off a slow connection
+    private static final class Trickle extends InputStream {
+        private final byte[] bytes;
+        private int position = 0;
+        private int reads = 0;
+
+        Trickle(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position == bytes.length) return -1;
+            int count = Math.min(Math.min(length, 1 + reads++ % 2), bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+}
@@ -1,36 +1,350 @@
-import java.net.*;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
+// Load generator for the server, a number of connections each sending requests drawn from a weighted mix and recording how long every response took
+// Closed-loop, the default, sends each request once the previous answer is in, so it measures what the server can sustain
+// Open-loop, given a rate, sends on a fixed schedule whatever the server does and measures each latency from when the request was due rather than when it went out,
+// so a stalled server is charged for the requests that queued behind the stall instead of hiding them (coordinated omission)
+//
+// Usage: java Client host port [-c connections] [-d seconds] [-w warmup seconds] [-r requests per second] [-k] [-t timeout ms] [-f mix file]
+//
+// A mix file holds requests separated by blank lines, each starts with a line "[weight] METHOD target" followed by its headers, lines starting with "> " make up its body
+// Content-Length, Host and Connection are added, so for example
+//
+//   3 GET /index.html
+//   Accept-Encoding: gzip
+//
+//   1 POST /cgi_bin/upcase.cgi
+//   Content-Type: application/x-www-form-urlencoded
+//   > x=1
 public class Client {
 
-	public static void main(String[] args) {
-		
-		if (args.length != 2) {
-			System.err.println("Usage: java EchoClient <host name> <port number>");
-			System.exit(1);
-		}
-
-        	String hostName = args[0];
-        	int portNumber = Integer.parseInt(args[1]);
-
-		try (
-			Socket clientsocket = new Socket(hostName, portNumber);
-			PrintWriter out = new PrintWriter(clientsocket.getOutputStream(), true);
-			BufferedReader in = new BufferedReader(new InputStreamReader(clientsocket.getInputStream()));
-		) {
-			
-			// out.println("GET 123 HTTP/1.1");
-			out.println("POST /cgi_bin/upcase.cgi HTTP/1.0\n" +
-						"From: me@mycomputer\n" +
-						"User-Agent: telnet\n" +
-						"Content-Type: application/x-www-form-urlencoded\n" + 
-						"Content-Length: 14\n\n"+
-						"x=1!&2=y");
-			System.out.println("Server: " + in.readLine());
-
-		} catch (Exception e) {
-			System.err.println("Don't know about host " + hostName);
-			System.exit(1);
-		}
-	}
+    // A request of the mix rendered once for keep-alive and once for a connection per request
+    private static final class Template {
+        final int weight;
+        final String method;
+        final byte[] persistent;
+        final byte[] single;
+
+        Template(int weight, String method, String target, List<String> headers, byte[] body, String host) {
+            this.weight = weight;
+            this.method = method;
+            this.persistent = render(method, target, headers, body, host, "keep-alive");
+            this.single = render(method, target, headers, body, host, "close");
+        }
+
+        private static byte[] render(String method, String target, List<String> headers, byte[] body, String host, String connection) {
+            StringBuilder head = new StringBuilder(method + " " + target + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: " + connection + "\r\n");
+            for (String header : headers) head.append(header).append("\r\n");
+            if (body.length > 0 || method.equals("POST")) head.append("Content-Length: ").append(body.length).append("\r\n");
+            byte[] rendered = head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+            byte[] request = Arrays.copyOf(rendered, rendered.length + body.length);
+            System.arraycopy(body, 0, request, rendered.length, body.length);
+            return request;
+        }
+    }
+
+    // What one connection saw, merged into the report once every connection has stopped
+    private static final class Results {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final TreeMap<Integer, Long> statuses = new TreeMap<>();
+        final TreeMap<String, Long> errors = new TreeMap<>();
+        long bytes = 0;
+        long connects = 0;
+
+        void add(Results other) {
+            latencies.add(other.latencies);
+            other.statuses.forEach((status, count) -> statuses.merge(status, count, Long::sum));
+            other.errors.forEach((error, count) -> errors.merge(error, count, Long::sum));
+            bytes += other.bytes;
+            connects += other.connects;
+        }
+    }
+
+    private static String host;
+    private static int port;
+    private static int connections = 16;
+    private static int seconds = 10;
+    private static int warmup = 0;
+    private static double rate = 0;
+    private static boolean keepAlive = false;
+    private static int timeout = 5000;
+    private static String mixFile = null;
+
+    public static void main(String[] args) throws Exception {
+        if (!parseArguments(args)) {
+            System.err.println("Usage: java Client host port [-c connections] [-d seconds] [-w warmup seconds] [-r requests per second] [-k] [-t timeout ms] [-f mix file]");
+            return;
+        }
+
+        List<Template> mix = mixFile == null ? List.of(new Template(1, "GET", "/", List.of(), new byte[0], host + ":" + port)) : readMix(Path.of(mixFile));
+        int totalWeight = 0;
+        for (Template template : mix) totalWeight += template.weight;
+        Template[] weighted = new Template[totalWeight];        // picking a request is then an index into this
+        int next = 0;
+        for (Template template : mix) for (int i = 0; i < template.weight; i++) weighted[next++] = template;
+
+        System.out.printf("%d connections for %ds%s, %s, %s, %d requests in the mix%n", connections, seconds, warmup > 0 ? " after " + warmup + "s of warm up" : "",
+            rate > 0 ? "open-loop at " + rate + " requests/s" : "closed-loop", keepAlive ? "keep-alive" : "a connection per request", mix.size());
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Results>> workers = new ArrayList<>();
+        ExecutorService threads = Executors.newFixedThreadPool(connections);
+        for (int i = 0; i < connections; i++) {
+            int id = i;
+            workers.add(threads.submit(() -> run(id, weighted, start, measureFrom, end)));
+        }
+
+        Results total = new Results();
+        for (Future<Results> worker : workers) total.add(worker.get());
+        threads.shutdown();
+        report(total, seconds);
+    }
+
+    // One connection's loop, requests in open-loop mode are due at fixed intervals from the start, offset per connection so they don't all go out at once
+    private static Results run(int id, Template[] mix, long start, long measureFrom, long end) {
+        Results results = new Results();
+        Random random = new Random(id);
+        long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * connections / rate) : 0;
+        long due = start + (interval * id) / connections;
+        Socket socket = null;
+        InputStream input = null;
+        byte[] buffer = new byte[64 * 1024];
+
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (due >= end) break;
+                if (due > now) {
+                    LockSupport.parkNanos(due - now);
+                    continue;
+                }
+            } else if (now >= end) {
+                break;
+            }
+
+            long intended = interval > 0 ? due : now;
+            Template template = mix[random.nextInt(mix.length)];
+            int status;
+            try {
+                if (socket == null || !keepAlive) {
+                    if (socket != null) socket.close();
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(timeout);
+                    socket.connect(new InetSocketAddress(host, port), timeout);
+                    input = new BufferedInputStream(socket.getInputStream(), buffer.length);
+                    results.connects++;
+                }
+                socket.getOutputStream().write(keepAlive ? template.persistent : template.single);
+                long[] response = readResponse(input, buffer, template.method.equals("HEAD"));
+                status = (int) response[0];
+                if (intended >= measureFrom) results.bytes += response[1];
+                if (response[2] == 1) {       // the server closed it, or will
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException e) {
+                status = -1;
+                String kind = e instanceof SocketTimeoutException ? "timeout"
+                            : e instanceof java.net.ConnectException ? "connect refused"
+                            : e instanceof EOFException ? "closed early"
+                            : e instanceof ProtocolException ? "bad response"
+                            : "io error";
+                if (intended >= measureFrom) results.errors.merge(kind, 1L, Long::sum);
+                closeQuietly(socket);
+                socket = null;
+            }
+
+            if (intended >= measureFrom) {
+                results.latencies.record(System.nanoTime() - intended);
+                if (status >= 0) results.statuses.merge(status, 1L, Long::sum);
+            }
+            due += interval;
+        }
+        closeQuietly(socket);
+        return results;
+    }
+
+    private static final class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    // Reads one response, returning its status, the bytes read and 1 when the connection can't carry another request
+    // The body ends by Content-Length, chunked framing or the connection closing, responses to HEAD and 1xx, 204 and 304 ones have none
+    private static long[] readResponse(InputStream input, byte[] buffer, boolean head) throws IOException {
+        String statusLine = readLine(input);
+        if (statusLine == null) throw new EOFException();
+        String[] fields = statusLine.split(" ", 3);
+        if (fields.length < 2 || !fields[0].startsWith("HTTP/")) throw new ProtocolException("status line " + statusLine);
+        int status;
+        try {
+            status = Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("status line " + statusLine);
+        }
+        long read = statusLine.length() + 2;
+
+        long length = -1;
+        boolean chunked = false;
+        boolean close = !fields[0].equals("HTTP/1.1");
+        String line;
+        while ((line = readLine(input)) != null && !line.isEmpty()) {
+            read += line.length() + 2;
+            int colon = line.indexOf(':');
+            if (colon == -1) continue;
+            String name = line.substring(0, colon).strip();
+            String value = line.substring(colon + 1).strip();
+            if (name.equalsIgnoreCase("Content-Length")) length = Long.parseLong(value);
+            else if (name.equalsIgnoreCase("Transfer-Encoding")) chunked = value.equalsIgnoreCase("chunked");
+            else if (name.equalsIgnoreCase("Connection")) close = value.equalsIgnoreCase("close") || (close && !value.equalsIgnoreCase("keep-alive"));
+        }
+        if (line == null) throw new EOFException();
+        read += 2;
+
+        if (head || status < 200 || status == 204 || status == 304) return new long[] { status, read, close ? 1 : 0 };
+        if (chunked) {
+            while (true) {
+                String size = readLine(input);
+                if (size == null) throw new EOFException();
+                int extension = size.indexOf(';');
+                long chunk = Long.parseLong((extension == -1 ? size : size.substring(0, extension)).strip(), 16);
+                read += size.length() + 2;
+                if (chunk == 0) break;
+                read += skip(input, buffer, chunk + 2);
+            }
+            while ((line = readLine(input)) != null && !line.isEmpty()) read += line.length() + 2;     // trailers
+            return new long[] { status, read + 2, close ? 1 : 0 };
+        }
+        if (length >= 0) return new long[] { status, read + skip(input, buffer, length), close ? 1 : 0 };
+        read += skip(input, buffer, Long.MAX_VALUE);       // delimited by the connection closing
+        return new long[] { status, read, 1 };
+    }
+
+    // Skips count bytes, or up to the end of the stream when count is Long.MAX_VALUE
+    private static long skip(InputStream input, byte[] buffer, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            int readin = input.read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+            if (readin == -1) {
+                if (count == Long.MAX_VALUE) break;
+                throw new EOFException();
+            }
+            skipped += readin;
+        }
+        return skipped;
+    }
+
+    // A line without its line ending, null at the end of the stream
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) return line.length() == 0 ? null : line.toString();
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private static List<Template> readMix(Path file) throws IOException {
+        List<Template> mix = new ArrayList<>();
+        List<String> lines = new ArrayList<>(Files.readAllLines(file));
+        lines.add("");
+        String[] requestLine = null;
+        List<String> headers = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (String line : lines) {
+            if (line.startsWith("#")) continue;
+            if (line.isBlank()) {
+                if (requestLine != null) {
+                    int weight = requestLine.length == 3 ? Integer.parseInt(requestLine[0]) : 1;
+                    String method = requestLine[requestLine.length - 2];
+                    String target = requestLine[requestLine.length - 1];
+                    mix.add(new Template(weight, method, target, headers, body.toByteArray(), host + ":" + port));
+                }
+                requestLine = null;
+                headers = new ArrayList<>();
+                body.reset();
+            } else if (requestLine == null) {
+                requestLine = line.strip().split("\\s+");
+                if (requestLine.length < 2 || requestLine.length > 3) throw new IOException("expected \"[weight] METHOD target\" but got " + line);
+            } else if (line.startsWith("> ")) {
+                if (body.size() > 0) body.write('\n');
+                body.writeBytes(line.substring(2).getBytes(StandardCharsets.UTF_8));
+            } else {
+                headers.add(line.strip());
+            }
+        }
+        if (mix.isEmpty()) throw new IOException(file + " has no requests in it");
+        return mix;
+    }
+
+    private static void report(Results results, int seconds) {
+        LatencyHistogram latencies = results.latencies;
+        long errors = 0;
+        for (long count : results.errors.values()) errors += count;
+        System.out.printf("%n%d requests in %ds, %.1f requests/s, %.2f MB/s read, %d connections opened%n",
+            latencies.count(), seconds, latencies.count() / (double) seconds, results.bytes / 1e6 / seconds, results.connects);
+        System.out.printf("latency ms  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n", latencies.mean() / 1e6,
+            millis(latencies.percentile(50)), millis(latencies.percentile(90)), millis(latencies.percentile(99)), millis(latencies.percentile(99.9)), millis(latencies.max()));
+        StringBuilder statuses = new StringBuilder("status");
+        results.statuses.forEach((status, count) -> statuses.append("  ").append(status).append(": ").append(count));
+        System.out.println(statuses);
+        if (errors > 0) {
+            StringBuilder kinds = new StringBuilder("errors " + errors);
+            results.errors.forEach((kind, count) -> kinds.append("  ").append(kind).append(": ").append(count));
+            System.out.println(kinds);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static boolean parseArguments(String[] args) {
+        if (args.length < 2) return false;
+        try {
+            host = args[0];
+            port = Integer.parseInt(args[1]);
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-c": connections = Integer.parseInt(args[++i]); break;
+                    case "-d": seconds = Integer.parseInt(args[++i]); break;
+                    case "-w": warmup = Integer.parseInt(args[++i]); break;
+                    case "-r": rate = Double.parseDouble(args[++i]); break;
+                    case "-k": keepAlive = true; break;
+                    case "-t": timeout = Integer.parseInt(args[++i]); break;
+                    case "-f": mixFile = args[++i]; break;
+                    default: return false;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+        return connections > 0 && seconds > 0 && warmup >= 0 && rate >= 0 && timeout > 0;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // the connection is being dropped anyway
+        }
+    }
+
 }
@@ -0,0 +1,66 @@
+// Counts latencies in nanoseconds in log-linear buckets, exact below 128 and within 1/64 of the value above that, the same idea as HdrHistogram
+// Recording is a shift and an increment so it can sit on the request path, each thread records into its own and they are added up at the end
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;       // per power of two above the exact range
+    private static final int EXACT = 2 * SUB_BUCKETS;
+
+    private final long[] counts = new long[EXACT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+    private long total = 0;
+    private long max = 0;
+    private double sum = 0;
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[index(nanos)]++;
+        total++;
+        sum += nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    // The smallest recorded value that at least the given percentage of the values are no larger than, reported as its bucket's upper end
+    public long percentile(double percent) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, highest(i));
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < EXACT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;      // leaves value >>> shift in [SUB_BUCKETS, EXACT)
+        return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highest(int index) {
+        if (index < EXACT) return index;
+        int shift = (index - EXACT) / SUB_BUCKETS + 1;
+        long lowest = (long) ((index - EXACT) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+
+// Hashed timer wheel used by an event loop to expire connection deadlines, scheduling and cancelling are O(1) and it is only ever touched from the loop's own thread
+public class TimerWheel {
+
+    // A scheduled task, kept in an intrusive list in its bucket so that cancelling doesn't need to search for it
+    public final class Timeout {
+        private final Runnable task;
+        private final long targetTick;
+        private Timeout prev;
+        private Timeout next;
+        private boolean scheduled = true;
+
+        private Timeout(Runnable task, long targetTick) {
+            this.task = task;
+            this.targetTick = targetTick;
+        }
+
+        public void cancel() {
+            if (!scheduled) return;
+            unlink(this);
+        }
+    }
+
+    private final Timeout[] buckets;
+    private final long tickMillis;
+    private final long startTime;
+    private long tick = 0;      // last tick that has been expired
+    private int size = 0;
+
+    public TimerWheel(long tickMillis, int bucketCount) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.buckets = new Timeout[Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1];    // power of two so a tick maps to its bucket with a mask
+        this.startTime = System.currentTimeMillis();
+    }
+
+    // Runs the task once at least delayMillis have passed, rounded up to the next tick
+    public Timeout schedule(long delayMillis, Runnable task) {
+        long now = System.currentTimeMillis();
+        long targetTick = Math.max(tick + 1, (now - startTime + delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task, targetTick);
+        int index = (int) (targetTick & (buckets.length - 1));
+        timeout.next = buckets[index];
+        if (buckets[index] != null) buckets[index].prev = timeout;
+        buckets[index] = timeout;
+        size++;
+        return timeout;
+    }
+
+    // Fires every timeout whose tick has passed, a bucket holds timeouts for several rotations so only those due this rotation are run
+    public void advance(long now) {
+        long currentTick = (now - startTime) / tickMillis;
+        while (tick < currentTick && size > 0) {
+            tick++;
+            // Unlink everything due before running any of it, a task is free to cancel or schedule other timeouts
+            ArrayList<Timeout> due = new ArrayList<>();
+            for (Timeout timeout = buckets[(int) (tick & (buckets.length - 1))]; timeout != null; timeout = timeout.next) {
+                if (timeout.targetTick <= tick) due.add(timeout);
+            }
+            for (Timeout timeout : due) unlink(timeout);
+            for (Timeout timeout : due) timeout.task.run();
+        }
+        if (size == 0) tick = Math.max(tick, currentTick);
+    }
+
+    // Milliseconds the selector may block for before the next tick is due, 0 meaning there is nothing scheduled and it can block indefinitely
+    public long millisUntilNextTick(long now) {
+        if (size == 0) return 0;
+        return Math.max(1, startTime + (tick + 1) * tickMillis - now);
+    }
+
+    private void unlink(Timeout timeout) {
+        int index = (int) (timeout.targetTick & (buckets.length - 1));
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else buckets[index] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+    }
+
+}
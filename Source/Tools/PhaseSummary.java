@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// Summarises a flight recording of the server into a latency breakdown per request phase, the count, share of the total time and percentiles of each
+// Usage: java PhaseSummary recording.jfr [method|status|path]
+// The optional field splits every phase by its value, e.g. by path to see which resources spend their time reading files or spawning programs
+public class PhaseSummary {
+
+    // The server's phases in the order a request goes through them
+    private static final String[] PHASES = { "Accept", "Read", "Queue", "Handle", "FileRead", "CgiSpawn", "Write" };
+    private static final String PREFIX = "httpserver.";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2 || args.length == 2 && !List.of("method", "status", "path").contains(args[1])) {
+            System.err.println("Usage: java PhaseSummary recording.jfr [method|status|path]");
+            System.exit(2);
+        }
+        String field = args.length > 1 ? args[1] : null;
+
+        // Durations in nanoseconds, by phase then by the value of the field split on
+        Map<String, Map<String, Phase>> phases = new LinkedHashMap<>();
+        for (String phase : PHASES) phases.put(phase, new TreeMap<>());
+        long events = 0;
+        try (RecordingFile recording = new RecordingFile(Path.of(args[0]))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith(PREFIX)) continue;
+                Map<String, Phase> groups = phases.computeIfAbsent(name.substring(PREFIX.length()), phase -> new TreeMap<>());
+                groups.computeIfAbsent(field == null ? "" : describe(event, field), key -> new Phase()).add(event.getDuration(), event.getLong("bytes"));
+                events++;
+            }
+        }
+        if (events == 0) {
+            System.out.println("No server events in " + args[0] + ", was it recorded with -Dserver.jfr or with the httpserver events enabled?");
+            return;
+        }
+
+        long total = 0;
+        for (Map<String, Phase> groups : phases.values()) for (Phase phase : groups.values()) total += phase.sum;
+
+        System.out.printf("%-10s %-28s %9s %7s %10s %10s %10s %10s %10s %12s%n", "phase", field == null ? "" : field, "count", "share", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "bytes");
+        for (Map.Entry<String, Map<String, Phase>> entry : phases.entrySet()) {
+            for (Map.Entry<String, Phase> group : entry.getValue().entrySet()) {
+                Phase phase = group.getValue();
+                long[] sorted = phase.sorted();
+                System.out.printf("%-10s %-28s %9d %6.1f%% %10.3f %10.3f %10.3f %10.3f %10.3f %12d%n", entry.getKey(), shorten(group.getKey()), sorted.length,
+                        100.0 * phase.sum / total, millis(phase.sum / (double) sorted.length),
+                        millis(percentile(sorted, 50)), millis(percentile(sorted, 90)), millis(percentile(sorted, 99)), millis(sorted[sorted.length - 1]), phase.bytes);
+            }
+        }
+    }
+
+    private static String describe(RecordedEvent event, String field) {
+        if (field.equals("status")) {
+            int status = event.getInt("status");
+            return status == 0 ? "-" : Integer.toString(status);
+        }
+        String value = event.getString(field);
+        return value == null ? "-" : value;
+    }
+
+    private static String shorten(String value) {
+        return value.length() <= 28 ? value : value.substring(0, 25) + "...";
+    }
+
+    // Nearest rank, the smallest duration at least the given percentage of them are no longer than
+    private static long percentile(long[] sorted, double percent) {
+        int rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class Phase {
+        private long[] durations = new long[64];
+        private int count = 0;
+        private long sum = 0;
+        private long bytes = 0;
+
+        void add(Duration duration, long bytes) {
+            if (count == durations.length) durations = Arrays.copyOf(durations, count * 2);
+            long nanos = duration.toNanos();
+            durations[count++] = nanos;
+            sum += nanos;
+            this.bytes += bytes;
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(durations, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+}
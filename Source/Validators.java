@@ -0,0 +1,66 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// Entity tags for served files, made from a file's length and modification time and kept per path so each version's tag is only rendered once
+// A file changed within the last second could change again without its modification time moving, so until that second has passed it only gets a weak tag
+public final class Validators {
+
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static final class Validator {
+        final long lastModified;
+        final long length;
+        final String etag;
+
+        Validator(long lastModified, long length, String etag) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.etag = etag;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Validator> index = new ConcurrentHashMap<>();
+
+    public static String etag(String path, long lastModified, long length) {
+        Validator validator = index.get(path);
+        if (validator != null && validator.lastModified == lastModified && validator.length == length) return validator.etag;
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        if (System.currentTimeMillis() - lastModified < 1000) return "W/" + etag;
+        if (index.size() >= MAX_ENTRIES) index.clear();     // a crude bound, clearing only costs rendering the tags again
+        index.put(path, new Validator(lastModified, length, etag));
+        return etag;
+    }
+
+    // A compressed variant is a different representation, so it needs its own tag
+    public static String forEncoding(String etag, String encoding) {
+        if (encoding == null || etag == null) return etag;
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    // If-Match uses the strong comparison, a weak tag never matches
+    public static boolean strongMatch(String header, String... etags) {
+        for (String token : header.split(",")) {
+            token = token.strip();
+            if (token.equals("*")) return true;
+            if (token.startsWith("W/")) continue;
+            for (String etag : etags) if (!etag.startsWith("W/") && token.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    // If-None-Match uses the weak comparison, tags match if their opaque parts do
+    public static boolean weakMatch(String header, String... etags) {
+        for (String token : header.split(",")) {
+            token = token.strip();
+            if (token.equals("*")) return true;
+            for (String etag : etags) if (opaque(token).equals(opaque(etag))) return true;
+        }
+        return false;
+    }
+
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private Validators() {}
+
+}